@@ -10,36 +10,85 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.Writer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 // Almost every Java-related tool seems to have a coffee-related name.
 public class Babycino {
-    public static final int LIMIT = 100;
+    // Print statistics for each optimisation pass?
+    private static boolean passStats = false;
+    // Print statistics for each phase of the compiler, as text or JSON?
+    private static boolean printStats = false;
+    private static boolean printStatsJson = false;
+    // Measurements of each phase of the compiler.
+    private static CompilerStats stats = new CompilerStats();
+    // The number of threads to generate and optimise code with.
+    private static int jobs = 1;
+    // Check array indices at run time?
+    private static boolean checked = false;
+    // The number of registers to allocate, not counting r0.
+    private static int registers = TACRegisterAllocator.DEFAULT_REGISTERS;
 
     public static void main(String args[]) {
 
         // Check the command-line arguments.
-        if (args.length != 2) {
-            System.err.println("Usage: babycino in.java out.c");
-            System.exit(1);
+        // Options come first, then the input and output files.
+        int argn = 0;
+        while (argn < args.length && args[argn].startsWith("-")) {
+            switch (args[argn]) {
+                case "--pass-stats":
+                    passStats = true;
+                    break;
+                case "--stats":
+                    printStats = true;
+                    break;
+                case "--stats-json":
+                    printStatsJson = true;
+                    break;
+                case "--checked":
+                    checked = true;
+                    break;
+                case "-j":
+                    argn++;
+                    jobs = parsePositive(args, argn);
+                    break;
+                case "--registers":
+                    argn++;
+                    registers = parsePositive(args, argn);
+                    break;
+                default:
+                    usage();
+            }
+            argn++;
+        }
+        if (args.length - argn != 2) {
+            usage();
         }
+        String inFile = args[argn];
+        String outFile = args[argn + 1];
 
         // Read the input file.
         ANTLRInputStream input = null;
+        stats.begin("read");
         try {
-            input = new ANTLRFileStream(args[0]);
+            input = new ANTLRFileStream(inFile);
         }
         catch (IOException e) {
             System.err.println("Error reading input file: " + e);
             System.exit(1);
         }
+        stats.end();
 
         // Create the output file.
         FileWriter output = null;
         try {
-            output = new FileWriter(args[1]);
+            output = new FileWriter(outFile);
         }
         catch (IOException e) {
             System.err.println("Error writing output file: " + e);
@@ -50,29 +99,95 @@ public class Babycino {
             // Call each stage of the compiler in sequence.
             ParseTree tree = parse(input);
             SymbolTable sym = semantic(tree);
+
+            stats.begin("generateTAC");
             List<TACBlock> tac = generateTAC(tree, sym);
+            stats.end();
+            stats.count("tac.blocks", tac.size());
+            stats.count("tac.ops.before", countOps(tac));
             System.out.println("UNOPTIMISED INTERMEDIATE CODE:");
             dumpTAC(tac);
-            tac = optimiseTAC(tac);
+
+            stats.begin("optimiseTAC");
+            tac = optimiseTAC(tac, sym);
+            stats.end();
+            stats.count("tac.ops.after", countOps(tac));
+
+            stats.begin("allocateRegisters");
+            tac = allocateRegisters(tac);
+            stats.end();
             System.out.println("OPTIMISED INTERMEDIATE CODE:");
             dumpTAC(tac);
+
+            stats.begin("generateCCode");
             generateCCode(tac, output);
+            stats.end();
         }
 
         catch (CompilerException e) {
             System.err.println("Exiting due to earlier error.");
             System.exit(1);
         }
+
+        if (printStats) {
+            stats.print(System.err);
+        }
+        if (printStatsJson) {
+            stats.printJson(System.err);
+        }
+    }
+
+
+    // Print usage information and exit.
+    private static void usage() {
+        System.err.println("Usage: babycino [options] in.java out.c");
+        System.err.println("Options:");
+        System.err.println("  --pass-stats    print statistics for each optimisation pass");
+        System.err.println("  --stats         print time, memory and counts for each compiler phase");
+        System.err.println("  --stats-json    print the same statistics as JSON");
+        System.err.println("  --checked       check array indices at run time");
+        System.err.println("  -j N            generate and optimise code with N threads (default 1)");
+        System.err.println("  --registers N   allocate N registers, spilling the rest to the frame (default "
+                           + TACRegisterAllocator.DEFAULT_REGISTERS + ")");
+        System.exit(1);
+    }
+
+    // Return the positive integer in args[argn], or print usage and exit.
+    private static int parsePositive(String[] args, int argn) {
+        if (argn >= args.length) {
+            usage();
+        }
+        int n;
+        try {
+            n = Integer.parseInt(args[argn]);
+        }
+        catch (NumberFormatException e) {
+            n = 0;
+        }
+        if (n <= 0) {
+            usage();
+        }
+        return n;
     }
 
 
     // LEXICAL AND SYNTAX ANALYSIS:
     public static ParseTree parse(ANTLRInputStream input) throws CompilerException {
         // Set up the ANTLR lexer and parser. Parse the input.
+        // The parser would read tokens from the lexer as it goes, but lex
+        // the whole input first so the two can be measured separately.
+        stats.begin("lex");
         MiniJavaLexer lexer = new MiniJavaLexer(input);
         CommonTokenStream tokens = new CommonTokenStream(lexer);
+        tokens.fill();
+        stats.end();
+        stats.count("tokens", tokens.size());
+
+        stats.begin("parse");
         MiniJavaParser parser = new MiniJavaParser(tokens);
         ParseTree tree = parser.goal();
+        stats.end();
+        stats.count("parse.nodes", countNodes(tree));
 
         if (parser.getNumberOfSyntaxErrors() > 0) {
             System.err.println("Syntax errors encountered during parsing.");
@@ -89,25 +204,33 @@ public class Babycino {
         // Prepare to walk the parse tree.
         ParseTreeWalker walker = new ParseTreeWalker();
 
+        stats.begin("semantic");
+
         // Populate the symbol table with the names of all the classes.
         {
+            stats.begin("ClassFinder");
             ClassFinder finder = new ClassFinder(sym);
             walker.walk(finder, tree);
+            stats.end();
             finder.die();
         }
         
         // Populate the symbol table with the members of classes.
         // Also build the inheritance hierarchy.
         {
+            stats.begin("ClassAnalysis");
             ClassAnalysis analysis = new ClassAnalysis(sym);
             walker.walk(analysis, tree);
+            stats.end();
             analysis.die();
         }
 
         // Resolve the inheritance hierarchy.
+        stats.begin("inherit");
         for (Class c : sym.values()) {
             c.inherit();
         }
+        stats.end();
 
         // Uncomment this to dump a summary of the symbol table.
         System.out.println("SYMBOL TABLE SUMMARY:");
@@ -115,14 +238,47 @@ public class Babycino {
 
         // Typechecking.
         {
+            stats.begin("TypeChecker");
             TypeChecker typechecker = new TypeChecker(sym);
             walker.walk(typechecker, tree);
+            stats.end();
             typechecker.die();
         }
+
+        // Find which method calls can only reach one method.
+        stats.begin("ClassHierarchy");
+        sym.setHierarchy(new ClassHierarchy(sym));
+        stats.end();
+
+        stats.end();
+
+        // Count the classes and methods, not including Object.
+        int methods = 0;
+        for (Class c : sym.values()) {
+            methods += c.ownMethods().size();
+        }
+        stats.count("classes", sym.size() - 1);
+        stats.count("methods", methods);
         
         return sym;
     }
 
+    // Count the nodes in a parse tree.
+    private static long countNodes(ParseTree tree) {
+        // Use an explicit stack, as parse trees can be deep.
+        long count = 0;
+        ArrayDeque<ParseTree> stack = new ArrayDeque<ParseTree>();
+        stack.push(tree);
+        while (!stack.isEmpty()) {
+            ParseTree node = stack.pop();
+            count++;
+            for (int i = 0; i < node.getChildCount(); i++) {
+                stack.push(node.getChild(i));
+            }
+        }
+        return count;
+    }
+
 
     // INTERMEDIATE CODE GENERATION:
     public static List<TACBlock> generateTAC(ParseTree tree, SymbolTable sym) {
@@ -137,7 +293,7 @@ public class Babycino {
         // Generate code for main() in first class.
         {
             Class main = classes.next();
-            TACGenerator gen = new TACGenerator(sym, main);
+            TACGenerator gen = new TACGenerator(sym, main, checked);
             TACBlock mainBlock = new TACBlock();
             mainBlock.add(TACOp.label("MAIN"));
             mainBlock.addAll(gen.visit(sym.getMain()));
@@ -145,17 +301,76 @@ public class Babycino {
             tac.add(mainBlock);
         }
         // Generate code for every other class.
+        List<Class> rest = new ArrayList<Class>();
         while (classes.hasNext()) {
-            Class c = classes.next();
-            TACGenerator gen = new TACGenerator(sym, c);
-            for (Method m : c.ownMethods()) {
-                tac.add(gen.visit(m.getCtx()));
-            }
+            rest.add(classes.next());
+        }
+        for (List<TACBlock> blocks : generateClasses(sym, rest)) {
+            tac.addAll(blocks);
         }
         
         return tac;
     }
 
+    // Generate code for a list of classes, returning the blocks for each
+    // class in the same order as the list.
+    // Each class has its own TACGenerator, with its own counters, and labels
+    // are qualified by method name, so classes can be generated independently.
+    // With more than one job, they are generated in parallel.
+    private static List<List<TACBlock>> generateClasses(SymbolTable sym, List<Class> classes) {
+        List<List<TACBlock>> results = new ArrayList<List<TACBlock>>();
+        if (jobs <= 1 || classes.size() <= 1) {
+            for (Class c : classes) {
+                results.add(generateClass(sym, c));
+            }
+            return results;
+        }
+
+        List<Callable<List<TACBlock>>> tasks = new ArrayList<Callable<List<TACBlock>>>();
+        for (Class c : classes) {
+            tasks.add(() -> generateClass(sym, c));
+        }
+        ForkJoinPool pool = new ForkJoinPool(jobs);
+        try {
+            // invokeAll() returns the futures in the same order as the tasks.
+            for (Future<List<TACBlock>> f : pool.invokeAll(tasks)) {
+                results.add(f.get());
+            }
+        }
+        catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted during code generation", e);
+        }
+        catch (ExecutionException e) {
+            // Code generation never fails for a correct program, so pass on
+            // the underlying error.
+            throw new RuntimeException(e.getCause());
+        }
+        finally {
+            pool.shutdown();
+        }
+        return results;
+    }
+
+    // Generate code for every method of a class.
+    private static List<TACBlock> generateClass(SymbolTable sym, Class c) {
+        List<TACBlock> blocks = new ArrayList<TACBlock>();
+        TACGenerator gen = new TACGenerator(sym, c, checked);
+        for (Method m : c.ownMethods()) {
+            blocks.add(gen.visit(m.getCtx()));
+        }
+        return blocks;
+    }
+
+
+    // Count the operations in a list of blocks.
+    private static long countOps(List<TACBlock> tac) {
+        long count = 0;
+        for (TACBlock b : tac) {
+            count += b.size();
+        }
+        return count;
+    }
+
 
     // Dump Three Address Code to standard output.
     public static void dumpTAC(List<TACBlock> tac) {
@@ -166,40 +381,58 @@ public class Babycino {
 
 
     // INTERMEDIATE CODE OPTIMISATION:
-    public static List<TACBlock> optimiseTAC(List<TACBlock> tac) {
-        TACBlockOptimiser peephole = new TACPeepholeOptimiser();
-        TACBlockOptimiser deadcode = new TACDeadCodeOptimiser();
+    public static List<TACBlock> optimiseTAC(List<TACBlock> tac, SymbolTable sym) {
+        // The optimisation pipeline. Passes are repeated, in this order,
+        // until none of them can improve the code any further.
+        PassManager passes = new PassManager()
+            .add("tailcall", new TACTailCallOptimiser(sym))
+            .add("peephole", new TACPeepholeOptimiser())
+            .add("jumps", new TACJumpThreadingOptimiser())
+            .add("sccp", new TACSCCPOptimiser())
+            .add("lvn", new TACValueNumberingOptimiser())
+            .add("copyprop", new TACCopyPropagationOptimiser())
+            .add("scalar", new TACScalarReplacementOptimiser())
+            .add("licm", new TACLoopInvariantOptimiser())
+            .add("bounds", new TACBoundsCheckOptimiser())
+            .add("deadcode", new TACDeadCodeOptimiser())
+            .add("ssa", new TACSSAOptimiser());
+
+        // Blocks are independent, so can be optimised in parallel.
+        passes.optimise(tac, jobs);
+
+        // Inline small methods into their callers, using the optimised code
+        // of each, then optimise the callers that changed again.
+        stats.begin("inline");
+        TACInliner inliner = new TACInliner(sym);
+        List<Integer> inlined = inliner.inline(tac);
+        stats.end();
+        stats.count("inline.calls", inliner.getInlined());
+        List<TACBlock> callers = new ArrayList<TACBlock>();
+        for (int n : inlined) {
+            callers.add(tac.get(n));
+        }
+        passes.optimise(callers, jobs);
+        for (int i = 0; i < inlined.size(); i++) {
+            tac.set(inlined.get(i), callers.get(i));
+        }
 
+        if (passStats) {
+            passes.report(System.err);
+        }
+        return tac;
+    }
+
+
+    // REGISTER ALLOCATION:
+    public static List<TACBlock> allocateRegisters(List<TACBlock> tac) {
+        TACRegisterAllocator allocator = new TACRegisterAllocator(registers);
         for (int n = 0; n < tac.size(); n++) {
-            int cycle = 0;
-            while (cycle < LIMIT) {
-                boolean changed = false;
-
-                {
-                    TACBlock opt = peephole.optimise(tac.get(n));
-                    if (opt != null) {
-                        tac.set(n, opt);
-                        changed = true;
-                    }
-                }
-                {
-                    TACBlock opt = deadcode.optimise(tac.get(n));
-                    if (opt != null) {
-                        tac.set(n, opt);
-                        changed = true;
-                    }
-                }
-
-                if (!changed) {
-                    break;
-                }
-                cycle++;
-            }
-            if (cycle == LIMIT) {
-                System.err.println("Warning: Optimisation reached cycle limit.");
+            TACBlock result = allocator.allocate(tac.get(n));
+            if (result != null) {
+                tac.set(n, result);
             }
         }
-
+        stats.count("regalloc.spills", allocator.getSpilled());
         return tac;
     }
 
@@ -121,16 +121,16 @@ public class CGenerator implements MachineGenerator {
         return vgs;
     }
 
-    // Turn a register name into a corresponding C variable name.
-    private static String regToVar(String r) {
-        if (r == null) {
+    // Turn a register into a corresponding C variable name.
+    private static String regToVar(int r) {
+        if (r == TACReg.NONE) {
             return null;
         }
-        if (r.startsWith("r") || r.startsWith("vg")) {
-            return r;
+        if (TACReg.isR(r) || TACReg.isVG(r)) {
+            return TACReg.name(r);
         }
-        assert(r.startsWith("vl"));
-        return "vl[" + r.substring(2) + "]";
+        assert(TACReg.isVL(r));
+        return "vl[" + TACReg.index(r) + "]";
     }
 
     // Translate a Three Address Code operation into a single C statement.
@@ -156,6 +156,11 @@ public class CGenerator implements MachineGenerator {
                 if (n == TACOp.binopToCode("offset")) {
                     return "    " + r1 + ".ptr = " + r2 + ".ptr + " + r3 + ".n;";
                 }
+                if (n == TACOp.binopToCode("<<")) {
+                    // Shifting a negative int left is undefined in C, so
+                    // shift it as unsigned, which wraps around as in Java.
+                    return "    " + r1 + ".n = (int) ((unsigned) " + r2 + ".n << " + r3 + ".n);";
+                }
                 return "    " + r1 + ".n = " + r2 + ".n " + TACOp.codeToBinop(n) + " " + r3 + ".n;";
             case PARAM:
                 return "    " + "param[next_param++] = " + r1 + ";";
@@ -169,6 +174,8 @@ public class CGenerator implements MachineGenerator {
                 return "    " + "goto " + label + ";";
             case JZ:
                 return "    " + "if (" + r1 + ".n == 0) goto " + label + ";";
+            case JNZ:
+                return "    " + "if (" + r1 + ".n != 0) goto " + label + ";";
             case MALLOC:
                 // Use of calloc() is important, as it zeros the memory, which
                 // conveniently allocates the correct default values for all
@@ -185,6 +192,11 @@ public class CGenerator implements MachineGenerator {
                 // This only works because the TAC we generate only takes the
                 // addresses of methods, for which we generate a C function.
                 return "    " + r1 + ".f = &" + label + ";";
+            case CHECK:
+                // The length of an array is in its 1st word. Comparing as
+                // unsigned catches negative indices too.
+                return "    " + "if ((unsigned) " + r2 + ".n >= (unsigned) " + r1 + ".ptr->n) "
+                    + "{ fprintf(stderr, \"Array index out of bounds\\n\"); exit(1); }";
             case NOP:
                 return "    ";
             default:
@@ -0,0 +1,68 @@
+package babycino;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Class hierarchy analysis.
+//
+// MiniJava programs are compiled whole, so every subclass of a class is
+// known. If no subclass of a call's static receiver type overrides the
+// method called, the call can only ever reach one method, and can be made
+// directly rather than through the vtable.
+//
+// The hierarchy is found once, after inheritance is resolved, and is only
+// read afterwards, so it can be shared between threads generating code.
+public class ClassHierarchy {
+
+    // The classes directly extending each class.
+    private Map<Class, List<Class>> subclasses;
+    // The only method each class's methods can resolve to, by name, for
+    // objects of that class or any subclass. Methods that are overridden
+    // somewhere below the class are left out.
+    private Map<Class, Map<String, Method>> targets;
+
+    // Analyse the classes in a symbol table. Inheritance must already have
+    // been resolved.
+    public ClassHierarchy(SymbolTable sym) {
+        this.subclasses = new HashMap<Class, List<Class>>();
+        this.targets = new HashMap<Class, Map<String, Method>>();
+
+        for (Class c : sym.values()) {
+            this.subclasses.put(c, new ArrayList<Class>());
+        }
+        for (Class c : sym.values()) {
+            if (c.getBase() != null) {
+                this.subclasses.get(c.getBase()).add(c);
+            }
+        }
+
+        for (Class c : sym.values()) {
+            Map<String, Method> unique = new HashMap<String, Method>();
+            for (Method m : c.allMethods()) {
+                if (!this.overridden(c, m)) {
+                    unique.put(m.getName(), m);
+                }
+            }
+            this.targets.put(c, unique);
+        }
+    }
+
+    // Is method m overridden in any subclass of c, at any depth?
+    private boolean overridden(Class c, Method m) {
+        for (Class sub : this.subclasses.get(c)) {
+            if (sub.getAnyMethod(m.getName()) != m || this.overridden(sub, m)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Return the method a call of the named method on an object with static
+    // type c always reaches, or null if it depends on the object's class.
+    public Method resolve(Class c, String name) {
+        return this.targets.get(c).get(name);
+    }
+
+}
@@ -0,0 +1,177 @@
+package babycino;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Measurements of a run of the compiler, for finding out where time goes.
+//
+// The compiler is split into phases (parsing, semantic analysis and so on),
+// which may be split further into sub-phases (such as the individual walks of
+// the parse tree). For each phase, the wall time, CPU time and bytes
+// allocated are recorded. Phases must be ended in the reverse order to the
+// one they were begun in.
+//
+// CPU time and allocation are measured for the thread that begins and ends
+// the phase, so do not include work done on other threads (such as with
+// -j). They are recorded as -1 if the JVM cannot measure them.
+//
+// Counts of things (tokens, classes, TAC operations...) can also be recorded,
+// and everything is printed either for people to read or as JSON.
+public class CompilerStats {
+
+    // A phase of the compiler.
+    private static class Phase {
+        String name;
+        // How deeply the phase is nested in other phases.
+        int depth;
+        // Measurements at the start of the phase, then the differences once
+        // the phase has ended.
+        long wall;
+        long cpu;
+        long alloc;
+
+        Phase(String name, int depth) {
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+
+    private ThreadMXBean threads;
+    // All phases, in the order they were begun.
+    private List<Phase> phases;
+    // The phases begun but not yet ended, innermost first.
+    private Deque<Phase> open;
+    // Counts, by name, in the order they were first recorded.
+    private Map<String, Long> counts;
+
+    public CompilerStats() {
+        this.threads = ManagementFactory.getThreadMXBean();
+        this.phases = new ArrayList<Phase>();
+        this.open = new ArrayDeque<Phase>();
+        this.counts = new LinkedHashMap<String, Long>();
+    }
+
+    // Begin a phase, nested inside any phase that has not yet ended.
+    public void begin(String name) {
+        Phase phase = new Phase(name, this.open.size());
+        this.phases.add(phase);
+        this.open.push(phase);
+        phase.alloc = this.alloc();
+        phase.cpu = this.cpu();
+        phase.wall = System.nanoTime();
+    }
+
+    // End the phase begun most recently.
+    public void end() {
+        long wall = System.nanoTime();
+        long cpu = this.cpu();
+        long alloc = this.alloc();
+        Phase phase = this.open.pop();
+        phase.wall = wall - phase.wall;
+        phase.cpu = (cpu < 0) ? -1 : cpu - phase.cpu;
+        phase.alloc = (alloc < 0) ? -1 : alloc - phase.alloc;
+    }
+
+    // Record a count.
+    public void count(String name, long n) {
+        this.counts.put(name, n);
+    }
+
+    // Return the CPU time used so far by this thread, or -1 if unknown.
+    private long cpu() {
+        if (!this.threads.isCurrentThreadCpuTimeSupported()) {
+            return -1;
+        }
+        return this.threads.getCurrentThreadCpuTime();
+    }
+
+    // Return the bytes allocated so far by this thread, or -1 if unknown.
+    // This needs the HotSpot extension of ThreadMXBean.
+    private long alloc() {
+        if (!(this.threads instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) this.threads;
+        if (!hotspot.isThreadAllocatedMemorySupported()) {
+            return -1;
+        }
+        return hotspot.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // ------------------------------------------------------------------------
+    // Output:
+
+    // Print the statistics for people to read.
+    public void print(PrintStream out) {
+        out.println("COMPILER STATISTICS:");
+        out.println(String.format("%-24s %10s %10s %14s", "phase", "wall (ms)", "cpu (ms)", "alloc (bytes)"));
+        for (Phase phase : this.phases) {
+            String name = indent(phase.depth) + phase.name;
+            String alloc = (phase.alloc < 0) ? "-" : Long.toString(phase.alloc);
+            out.println(String.format("%-24s %10.3f %10s %14s",
+                                      name, phase.wall / 1e6, ms(phase.cpu), alloc));
+        }
+        for (Map.Entry<String, Long> count : this.counts.entrySet()) {
+            out.println(String.format("%-24s %10d", count.getKey(), count.getValue()));
+        }
+    }
+
+    // Print the statistics as a JSON object.
+    // Nested phases have names of the form "outer/inner".
+    public void printJson(PrintStream out) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"phases\": [");
+        // The names of the phase and the phases it is nested in.
+        String[] path = new String[this.phases.size()];
+        for (int i = 0; i < this.phases.size(); i++) {
+            Phase phase = this.phases.get(i);
+            path[phase.depth] = phase.name;
+            String name = String.join("/", Arrays.copyOf(path, phase.depth + 1));
+            json.append((i == 0) ? "\n" : ",\n");
+            json.append("    {\"name\": ").append(quote(name));
+            json.append(", \"wallNanos\": ").append(phase.wall);
+            json.append(", \"cpuNanos\": ").append(phase.cpu);
+            json.append(", \"allocBytes\": ").append(phase.alloc);
+            json.append("}");
+        }
+        json.append("\n  ],\n  \"counts\": {");
+        boolean first = true;
+        for (Map.Entry<String, Long> count : this.counts.entrySet()) {
+            json.append(first ? "\n" : ",\n");
+            json.append("    ").append(quote(count.getKey())).append(": ").append(count.getValue());
+            first = false;
+        }
+        json.append("\n  }\n}");
+        out.println(json.toString());
+    }
+
+    private static String indent(int depth) {
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            s.append("  ");
+        }
+        return s.toString();
+    }
+
+    // Format nanoseconds as milliseconds, or "-" if unknown.
+    private static String ms(long nanos) {
+        if (nanos < 0) {
+            return "-";
+        }
+        return String.format("%.3f", nanos / 1e6);
+    }
+
+    // Quote a string for JSON.
+    private static String quote(String s) {
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+}
@@ -0,0 +1,378 @@
+package babycino;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+// A block of Three Address Code, stored as a "struct of arrays".
+//
+// A TACBlock holds one TACOp object per operation. For large blocks, that
+// costs a lot of memory and scatters the operations around the heap. Here,
+// each field of an operation is stored in a separate int array instead, with
+// labels replaced by small integer ids, so each operation takes 6 ints.
+//
+// There are no objects for individual operations. Code that reads or changes
+// a PackedTACBlock uses the location of an operation as a "cursor" into the
+// arrays, with accessors and setters that take the location, so a pass over
+// the code need not allocate anything.
+//
+// Operations can be deleted without moving the rest, by leaving a
+// "tombstone" in their place, which behaves like a NOP. This keeps the
+// locations of the other operations the same, so a TACFlowAnalysis of the
+// block can be kept up to date as it changes (see TACFlowAnalysis.forCode()).
+// The tombstones are cleared out by compact(), or when unpacking.
+public class PackedTACBlock {
+    // All operation types, indexed by ordinal.
+    // (values() returns a new array each time, so keep a copy.)
+    private static final TACOpType[] TYPES = TACOpType.values();
+
+    // No label.
+    public static final int NO_LABEL = -1;
+
+    // The fields of the operations, as in TACOp.
+    private int[] types;
+    private int[] r1s;
+    private int[] r2s;
+    private int[] r3s;
+    private int[] labels;
+    private int[] ns;
+    // The number of operations in the block.
+    private int size;
+
+    // The names of the labels, indexed by id, and the reverse map.
+    private ArrayList<String> labelNames;
+    private Map<String, Integer> labelIds;
+
+    // The locations of deleted operations.
+    private BitSet deleted;
+
+    // The register that holds the "result" of the block, as in TACBlock.
+    private int result;
+
+    // A flow analysis of the block that is kept up to date as the block is
+    // changed in place, or null. Any change that moves operations drops it.
+    TACFlowAnalysis flow;
+
+    // Create an empty block with space for a number of operations.
+    public PackedTACBlock(int capacity) {
+        capacity = Math.max(capacity, 4);
+        this.types = new int[capacity];
+        this.r1s = new int[capacity];
+        this.r2s = new int[capacity];
+        this.r3s = new int[capacity];
+        this.labels = new int[capacity];
+        this.ns = new int[capacity];
+        this.size = 0;
+        this.labelNames = new ArrayList<String>();
+        this.labelIds = new HashMap<String, Integer>();
+        this.deleted = new BitSet();
+        this.result = TACReg.NONE;
+        this.flow = null;
+    }
+
+    // Convert a TACBlock into a PackedTACBlock.
+    public static PackedTACBlock pack(TACBlock code) {
+        PackedTACBlock result = new PackedTACBlock(code.size());
+        for (TACOp op : code) {
+            result.add(op);
+        }
+        result.result = code.result;
+        return result;
+    }
+
+    // Return a copy of this block, leaving out deleted operations.
+    public PackedTACBlock copy() {
+        PackedTACBlock result = new PackedTACBlock(this.count());
+        result.labelNames.addAll(this.labelNames);
+        result.labelIds.putAll(this.labelIds);
+        for (int n = this.next(-1); n < this.size; n = this.next(n)) {
+            result.add(this.getType(n), this.r1s[n], this.r2s[n], this.r3s[n], this.labels[n], this.ns[n]);
+        }
+        result.result = this.result;
+        return result;
+    }
+
+    // Convert this block back into a TACBlock, leaving out deleted operations.
+    public TACBlock unpack() {
+        TACBlock result = new TACBlock();
+        result.ensureCapacity(this.size);
+        for (int n = this.next(-1); n < this.size; n = this.next(n)) {
+            result.add(this.get(n));
+        }
+        result.setResult(this.result);
+        return result;
+    }
+
+    // Set the result register for the block, as in TACBlock.
+    public void setResult(int r) {
+        this.result = r;
+    }
+
+    // Get the result register for the block, or TACReg.NONE if it is the r1
+    // of the last operation, as in TACBlock.
+    public int getResult() {
+        return this.result;
+    }
+
+    // ------------------------------------------------------------------------
+    // Labels:
+
+    // Return the id of a label name, allocating one if necessary.
+    public int labelId(String label) {
+        if (label == null) {
+            return NO_LABEL;
+        }
+        Integer id = this.labelIds.get(label);
+        if (id == null) {
+            id = this.labelNames.size();
+            this.labelNames.add(label);
+            this.labelIds.put(label, id);
+        }
+        return id;
+    }
+
+    // Return the name of a label id, or null for NO_LABEL.
+    public String labelName(int id) {
+        if (id == NO_LABEL) {
+            return null;
+        }
+        return this.labelNames.get(id);
+    }
+
+    // Has a label name been given an id?
+    // This does not mean the label is still in the code.
+    public boolean hasLabel(String label) {
+        return this.labelIds.containsKey(label);
+    }
+
+    // Return the number of label ids allocated so far.
+    // Ids run from 0 to labelCount()-1.
+    public int labelCount() {
+        return this.labelNames.size();
+    }
+
+    // ------------------------------------------------------------------------
+    // Reading operations:
+
+    // Return the number of operations in the block, including any deleted
+    // operations not yet cleared out by compact().
+    public int size() {
+        return this.size;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    // Return the number of operations in the block that have not been deleted.
+    public int count() {
+        return this.size - this.deleted.cardinality();
+    }
+
+    public TACOpType getType(int n) {
+        return TYPES[this.types[n]];
+    }
+
+    public int getR1(int n) {
+        return this.r1s[n];
+    }
+
+    public int getR2(int n) {
+        return this.r2s[n];
+    }
+
+    public int getR3(int n) {
+        return this.r3s[n];
+    }
+
+    // Return the id of the label argument of operation n.
+    public int getLabelId(int n) {
+        return this.labels[n];
+    }
+
+    // Return the name of the label argument of operation n.
+    public String getLabel(int n) {
+        return this.labelName(this.labels[n]);
+    }
+
+    public int getN(int n) {
+        return this.ns[n];
+    }
+
+    // Has operation n been deleted?
+    public boolean isDeleted(int n) {
+        return this.deleted.get(n);
+    }
+
+    // Return the location of the next operation after n that has not been
+    // deleted, or size() if there is none. Use n = -1 to find the first.
+    public int next(int n) {
+        int next = this.deleted.nextClearBit(n + 1);
+        return Math.min(next, this.size);
+    }
+
+    // Return the location of the last operation before n that has not been
+    // deleted, or -1 if there is none.
+    public int prev(int n) {
+        return this.deleted.previousClearBit(n - 1);
+    }
+
+    // Return the registers used and defined by operation n, as in TACOp.
+    public int firstUse(int n) {
+        return TACOp.firstUse(this.getType(n), this.r1s[n], this.r2s[n]);
+    }
+
+    public int secondUse(int n) {
+        return TACOp.secondUse(this.getType(n), this.r2s[n], this.r3s[n]);
+    }
+
+    public int def(int n) {
+        return TACOp.def(this.getType(n), this.r1s[n]);
+    }
+
+    // Return operation n as a new TACOp.
+    public TACOp get(int n) {
+        return TACOp.make(this.getType(n), this.r1s[n], this.r2s[n], this.r3s[n], this.getLabel(n), this.ns[n]);
+    }
+
+    // ------------------------------------------------------------------------
+    // Changing operations:
+
+    // Overwrite every field of operation n.
+    public void set(int n, TACOpType type, int r1, int r2, int r3, int label, int k) {
+        TACOpType oldType = this.getType(n);
+        int oldLabel = this.labels[n];
+        this.write(n, type.ordinal(), r1, r2, r3, label, k);
+        this.deleted.clear(n);
+        if (this.flow != null) {
+            this.flow.replaced(n, oldType, oldLabel);
+        }
+    }
+
+    // Overwrite operation n with a TACOp.
+    public void set(int n, TACOp op) {
+        this.set(n, op.getType(), op.getR1(), op.getR2(), op.getR3(), this.labelId(op.getLabel()), op.getN());
+    }
+
+    // Delete operation n, leaving a tombstone.
+    public void delete(int n) {
+        TACOpType oldType = this.getType(n);
+        int oldLabel = this.labels[n];
+        this.write(n, TACOpType.NOP.ordinal(), TACReg.NONE, TACReg.NONE, TACReg.NONE, NO_LABEL, 0);
+        this.deleted.set(n);
+        if (this.flow != null) {
+            this.flow.replaced(n, oldType, oldLabel);
+        }
+    }
+
+    // Store the fields of operation n.
+    private void write(int n, int type, int r1, int r2, int r3, int label, int k) {
+        this.types[n] = type;
+        this.r1s[n] = r1;
+        this.r2s[n] = r2;
+        this.r3s[n] = r3;
+        this.labels[n] = label;
+        this.ns[n] = k;
+    }
+
+    // Convenience setters for operations of common types:
+
+    public void setImmed(int n, int r1, int k) {
+        this.set(n, TACOpType.IMMED, r1, TACReg.NONE, TACReg.NONE, NO_LABEL, k);
+    }
+
+    public void setJmp(int n, int label) {
+        this.set(n, TACOpType.JMP, TACReg.NONE, TACReg.NONE, TACReg.NONE, label, 0);
+    }
+
+    public void setNop(int n) {
+        this.set(n, TACOpType.NOP, TACReg.NONE, TACReg.NONE, TACReg.NONE, NO_LABEL, 0);
+    }
+
+    // Append an operation to the block.
+    public void add(TACOp op) {
+        this.add(op.getType(), op.getR1(), op.getR2(), op.getR3(), this.labelId(op.getLabel()), op.getN());
+    }
+
+    // Append an operation to the block, given its fields.
+    public void add(TACOpType type, int r1, int r2, int r3, int label, int k) {
+        this.ensureCapacity(this.size + 1);
+        this.flow = null;
+        this.size++;
+        this.write(this.size - 1, type.ordinal(), r1, r2, r3, label, k);
+    }
+
+    // Remove operation n, moving the later operations down.
+    // Prefer delete() where possible, which is cheaper and keeps any flow
+    // analysis of the block.
+    public void remove(int n) {
+        BitSet keep = new BitSet(this.size);
+        keep.set(0, this.size);
+        keep.clear(n);
+        this.retain(keep);
+    }
+
+    // Clear out the tombstones left by deleted operations.
+    public void compact() {
+        if (this.deleted.isEmpty()) {
+            return;
+        }
+        BitSet keep = new BitSet(this.size);
+        keep.set(0, this.size);
+        keep.andNot(this.deleted);
+        this.retain(keep);
+    }
+
+    // Keep only the operations whose locations are set in keep, preserving
+    // their order. This takes one pass over the block.
+    public void retain(BitSet keep) {
+        BitSet deleted = new BitSet();
+        int to = 0;
+        for (int from = keep.nextSetBit(0); from >= 0 && from < this.size; from = keep.nextSetBit(from + 1)) {
+            if (from != to) {
+                this.copy(from, to, 1);
+            }
+            if (this.deleted.get(from)) {
+                deleted.set(to);
+            }
+            to++;
+        }
+        this.size = to;
+        this.deleted = deleted;
+        this.flow = null;
+    }
+
+    // Copy count operations from location from to location to.
+    private void copy(int from, int to, int count) {
+        System.arraycopy(this.types, from, this.types, to, count);
+        System.arraycopy(this.r1s, from, this.r1s, to, count);
+        System.arraycopy(this.r2s, from, this.r2s, to, count);
+        System.arraycopy(this.r3s, from, this.r3s, to, count);
+        System.arraycopy(this.labels, from, this.labels, to, count);
+        System.arraycopy(this.ns, from, this.ns, to, count);
+    }
+
+    // Make sure there is room for at least capacity operations.
+    private void ensureCapacity(int capacity) {
+        if (capacity <= this.types.length) {
+            return;
+        }
+        capacity = Math.max(capacity, this.types.length * 2);
+        this.types = Arrays.copyOf(this.types, capacity);
+        this.r1s = Arrays.copyOf(this.r1s, capacity);
+        this.r2s = Arrays.copyOf(this.r2s, capacity);
+        this.r3s = Arrays.copyOf(this.r3s, capacity);
+        this.labels = Arrays.copyOf(this.labels, capacity);
+        this.ns = Arrays.copyOf(this.ns, capacity);
+    }
+
+    // Dump the instructions to standard output, primarily for debugging.
+    public void dump() {
+        for (int n = this.next(-1); n < this.size; n = this.next(n)) {
+            System.out.println(this.get(n).toString());
+        }
+    }
+
+}
@@ -0,0 +1,238 @@
+package babycino;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Runs a pipeline of optimisers over blocks of TAC until they stop changing.
+//
+// The passes are run in order, and the pipeline is repeated while any pass
+// changes the code. A pass is only run again if the code has changed since
+// it last ran, as running it on the same code again would do nothing. That
+// includes changes made by the pass itself: not every pass finishes its
+// work in one run (the dead code optimiser, for example, only removes the
+// definitions that are unused before it runs, not the ones that become
+// unused as it goes). So the pipeline stops once every pass has run on the
+// latest code without changing it.
+//
+// The manager also records, for each pass, how long it took, how often it
+// ran, how often it changed the code and how many operations it removed.
+//
+// Blocks are independent of each other, so a list of blocks can be optimised
+// in parallel. The optimisers keep no state between calls, so the same
+// optimiser objects are shared by every thread, and statistics are recorded
+// under a lock on each pass.
+public class PassManager {
+
+    // Impose a limit on the number of times the pipeline is repeated.
+    // If the limit is reached, it probably means there is a bug in one of
+    // the optimisers.
+    public static final int LIMIT = 100;
+
+    // A pass in the pipeline, with its statistics.
+    private static class Pass {
+        // The name of the pass, for reports.
+        String name;
+        // The optimiser to run.
+        TACBlockOptimiser opt;
+        // Total wall time spent running the pass, in nanoseconds.
+        long nanos;
+        // The number of times the pass was run.
+        int runs;
+        // The number of times the pass was skipped, as the code was unchanged.
+        int skips;
+        // The number of times the pass changed the code.
+        int changes;
+        // The number of operations removed by the pass (less any added).
+        long removed;
+
+        Pass(String name, TACBlockOptimiser opt) {
+            this.name = name;
+            this.opt = opt;
+        }
+
+        // Record a run of the pass.
+        synchronized void ran(long nanos, boolean changed, int removed) {
+            this.nanos += nanos;
+            this.runs++;
+            if (changed) {
+                this.changes++;
+                this.removed += removed;
+            }
+        }
+
+        // Record that the pass was skipped.
+        synchronized void skipped() {
+            this.skips++;
+        }
+    }
+
+    // The passes, in the order they are run.
+    private List<Pass> passes;
+    // The number of blocks optimised.
+    private int blocks;
+    // The number of times the whole pipeline was run, over all blocks.
+    private int cycles;
+    // The number of blocks that reached the cycle limit.
+    private int unconverged;
+
+    public PassManager() {
+        this.passes = new ArrayList<Pass>();
+    }
+
+    // Add a pass to the end of the pipeline.
+    // Return this, so that pipelines can be built up in one expression.
+    public PassManager add(String name, TACBlockOptimiser opt) {
+        this.passes.add(new Pass(name, opt));
+        return this;
+    }
+
+    // Optimise a block of code by running the pipeline until no pass changes
+    // it. Return the optimised block, which may be the block passed in.
+    public PackedTACBlock optimise(PackedTACBlock code) {
+        int count = this.passes.size();
+        if (count == 0) {
+            this.finished(0);
+            return code;
+        }
+
+        // Number each version of the code, and record for each pass the
+        // version it last ran on, or -1 if it has not run yet.
+        int version = 0;
+        int[] seen = new int[count];
+        for (int i = 0; i < count; i++) {
+            seen[i] = -1;
+        }
+
+        // Once a whole cycle makes no change, every pass has seen the latest
+        // version of the code, so nothing more can be done.
+        int cycle = 0;
+        while (cycle < LIMIT) {
+            boolean changed = false;
+            for (int i = 0; i < count; i++) {
+                Pass pass = this.passes.get(i);
+                if (seen[i] == version) {
+                    pass.skipped();
+                    continue;
+                }
+                seen[i] = version;
+
+                int before = code.count();
+                long start = System.nanoTime();
+                PackedTACBlock opt = pass.opt.optimise(code);
+                long nanos = System.nanoTime() - start;
+
+                if (opt == null) {
+                    pass.ran(nanos, false, 0);
+                    continue;
+                }
+                code = opt;
+                changed = true;
+                version++;
+                pass.ran(nanos, true, before - code.count());
+            }
+            if (!changed) {
+                break;
+            }
+            cycle++;
+        }
+        this.finished(cycle);
+
+        if (cycle == LIMIT) {
+            System.err.println("Warning: Optimisation reached cycle limit.");
+        }
+        return code;
+    }
+
+    // Record that a block has been optimised, taking a number of cycles.
+    private synchronized void finished(int cycle) {
+        this.blocks++;
+        this.cycles += cycle;
+        if (cycle == LIMIT) {
+            this.unconverged++;
+        }
+    }
+
+    // Optimise every block in a list, in place.
+    public void optimise(List<TACBlock> tac) {
+        for (int n = 0; n < tac.size(); n++) {
+            tac.set(n, this.optimise(tac.get(n)));
+        }
+    }
+
+    // Optimise every block in a list, in place, using up to parallelism
+    // threads. The blocks may be optimised in any order, but each optimised
+    // block is put back in the same place, so the result is the same as
+    // optimising them one at a time.
+    public void optimise(List<TACBlock> tac, int parallelism) {
+        if (parallelism <= 1 || tac.size() <= 1) {
+            this.optimise(tac);
+            return;
+        }
+        TACBlock[] results = new TACBlock[tac.size()];
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new OptimiseTask(tac, results, 0, tac.size()));
+        }
+        finally {
+            pool.shutdown();
+        }
+        for (int n = 0; n < results.length; n++) {
+            tac.set(n, results[n]);
+        }
+    }
+
+    // Optimise a single block, returning the optimised copy.
+    private TACBlock optimise(TACBlock code) {
+        // Optimise the block in its packed form, which the optimisers
+        // can work on without allocating an object per operation.
+        return this.optimise(PackedTACBlock.pack(code)).unpack();
+    }
+
+    // Task to optimise the blocks from lo up to (but not including) hi,
+    // splitting the range in half until there is a single block.
+    private class OptimiseTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private List<TACBlock> tac;
+        private TACBlock[] results;
+        private int lo;
+        private int hi;
+
+        OptimiseTask(List<TACBlock> tac, TACBlock[] results, int lo, int hi) {
+            this.tac = tac;
+            this.results = results;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        protected void compute() {
+            if (this.hi - this.lo == 1) {
+                this.results[this.lo] = PassManager.this.optimise(this.tac.get(this.lo));
+                return;
+            }
+            int mid = (this.lo + this.hi) >>> 1;
+            invokeAll(new OptimiseTask(this.tac, this.results, this.lo, mid),
+                      new OptimiseTask(this.tac, this.results, mid, this.hi));
+        }
+    }
+
+    // Print the statistics for each pass.
+    // When blocks are optimised in parallel, the times are totals over all
+    // the threads.
+    public synchronized void report(PrintStream out) {
+        out.println("OPTIMISATION PASS STATISTICS:");
+        out.println("Blocks: " + this.blocks + ", cycles: " + this.cycles
+                    + ", not converged: " + this.unconverged);
+        out.println(String.format("%-12s %10s %6s %6s %8s %8s",
+                                  "pass", "time (ms)", "runs", "skips", "changes", "removed"));
+        for (Pass pass : this.passes) {
+            out.println(String.format("%-12s %10.3f %6d %6d %8d %8d",
+                                      pass.name, pass.nanos / 1e6, pass.runs, pass.skips,
+                                      pass.changes, pass.removed));
+        }
+    }
+
+}
@@ -17,9 +17,13 @@ public class SymbolTable extends java.util.LinkedHashMap<String, Class> {
     // Static types of method calls.
     HashMap<MiniJavaParser.ExpMethodCallContext, Type> types;
 
+    // The class hierarchy, once inheritance has been resolved.
+    ClassHierarchy hierarchy;
+
     // Create a new symbol table.
     public SymbolTable() {
         this.main = null;
+        this.hierarchy = null;
         this.types = new HashMap<MiniJavaParser.ExpMethodCallContext, Type>();
         // Make Object, the root of the inheritance hierarchy, the first object.
         // It has no point of definition, so the class has no associated context.
@@ -57,6 +61,16 @@ public class SymbolTable extends java.util.LinkedHashMap<String, Class> {
         return this.types.get(ctx);
     }
 
+    // Record the class hierarchy of the program.
+    public void setHierarchy(ClassHierarchy hierarchy) {
+        this.hierarchy = hierarchy;
+    }
+
+    // Return the class hierarchy of the program.
+    public ClassHierarchy getHierarchy() {
+        return this.hierarchy;
+    }
+
     // For informational/debugging purposes, dump the classes/methods in a
     // program to standard output.
     public void dump() {
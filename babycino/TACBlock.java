@@ -5,21 +5,21 @@ import java.util.ArrayList;
 // A block of Three Address Code.
 public class TACBlock extends ArrayList<TACOp> {
     // The register that holds the "result" of the block after execution.
-    // If null, assume r1 in the last TACOp holds the result.
-    String result;
+    // If TACReg.NONE, assume r1 in the last TACOp holds the result.
+    int result;
     
     public TACBlock() {
-        this.result = null;
+        this.result = TACReg.NONE;
     }
 
     // Set the result register for the block.
-    public void setResult(String r) {
+    public void setResult(int r) {
         this.result = r;
     }
 
     // Get the result register for the block.
-    public String getResult() {
-        if (this.result != null) {
+    public int getResult() {
+        if (this.result != TACReg.NONE) {
             return this.result;
         }
         // Default to r1 in the last TACOp.
@@ -35,36 +35,36 @@ public class TACBlock extends ArrayList<TACOp> {
 
     // Get the highest-valued r-register used in the block.
     public int getMaxR() {
-        return getMaxReg("r");
+        return getMaxReg(TACReg.R);
     }
 
     // Get the highest-valued vl-register used in the block.
     public int getMaxVL() {
-        return getMaxReg("vl");
+        return getMaxReg(TACReg.VL);
     }
 
     // Get the highest-valued vg-register used in the block.
     public int getMaxVG() {
-        return getMaxReg("vg");
+        return getMaxReg(TACReg.VG);
     }
 
     // Helper functions for the above:
 
-    private int getMaxReg(String prefix) {
+    private int getMaxReg(int kind) {
         int max = -1;
         for (TACOp op : this) {
-            max = Math.max(max, regPrefixToInt(prefix, op.getR1()));
-            max = Math.max(max, regPrefixToInt(prefix, op.getR2()));
-            max = Math.max(max, regPrefixToInt(prefix, op.getR3()));
+            max = Math.max(max, regKindToInt(kind, op.getR1()));
+            max = Math.max(max, regKindToInt(kind, op.getR2()));
+            max = Math.max(max, regKindToInt(kind, op.getR3()));
         }
         return max;
     }
 
-    private static int regPrefixToInt(String prefix, String r) {
-        if (r == null || !r.startsWith(prefix)) {
+    private static int regKindToInt(int kind, int r) {
+        if (TACReg.kind(r) != kind) {
             return -1;
         }
-        return Integer.parseInt(r.substring(prefix.length()));
+        return TACReg.index(r);
     }
 
     // Count the number of uses of param in a block.
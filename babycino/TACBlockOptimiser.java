@@ -5,5 +5,16 @@ public interface TACBlockOptimiser {
     // Optimise a TACBlock. Return the optimised block, or null if no change.
     // May modify the TACBlock passed in.
     TACBlock optimise(TACBlock code);
-}
 
+    // Optimise a PackedTACBlock. Return the optimised block, or null if no
+    // change. May modify the PackedTACBlock passed in.
+    // Optimisers that can work on the packed representation directly should
+    // override this; by default, the code is unpacked, optimised and repacked.
+    default PackedTACBlock optimise(PackedTACBlock code) {
+        TACBlock opt = this.optimise(code.unpack());
+        if (opt == null) {
+            return null;
+        }
+        return PackedTACBlock.pack(opt);
+    }
+}
@@ -0,0 +1,633 @@
+package babycino;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Removal of array bounds checks that can never fail.
+//
+// With --checked, TACGenerator puts a CHECK before every array access. A
+// check of index i into array a is redundant if 0 <= i and i < a.length are
+// already known, which is found by a value range analysis on SSA form (see
+// TACSSA). Each register gets an interval of the values it may hold, which
+// starts empty and grows until nothing changes. Intervals that keep growing
+// around a loop are widened to the limits of int, so this finishes quickly.
+// Arithmetic that may overflow gives the full range of int, as in Java.
+//
+// Conditional jumps narrow the ranges: after "c = x < y; if (c=0) jmp L",
+// x < y is known where the jump is not taken, and x >= y where it is (the
+// other way round for "if (c!=0) jmp L"). So that the narrowed values have
+// names of their own in SSA form, a copy of x (and of y) to itself is put at
+// the start of each successor that can only be reached from the jump.
+// Renaming into SSA form then gives the copies new registers, which are used
+// wherever the comparison's outcome is known, and the ranges of those
+// registers are narrowed. The copies are removed again when the code leaves
+// SSA form.
+//
+// Besides the ranges, a check of a[i] is redundant if i was narrowed by a
+// comparison i < n where n is the length of a: either loaded from a, or the
+// size a was allocated with. It is also redundant if an identical check has
+// already been made on every path to it.
+public class TACBoundsCheckOptimiser implements TACBlockOptimiser {
+
+    // The code for the binary operations.
+    private static final int LESS = TACOp.binopToCode("<");
+    private static final int PLUS = TACOp.binopToCode("+");
+    private static final int MINUS = TACOp.binopToCode("-");
+    private static final int TIMES = TACOp.binopToCode("*");
+
+    public TACBoundsCheckOptimiser() {
+
+    }
+
+    // Remove redundant checks from a TACBlock.
+    public TACBlock optimise(TACBlock code) {
+        PackedTACBlock result = this.optimise(PackedTACBlock.pack(code));
+        if (result == null) {
+            return null;
+        }
+        return result.unpack();
+    }
+
+    // Remove redundant checks from a PackedTACBlock.
+    // Return a new block, or null if no checks were removed.
+    public PackedTACBlock optimise(PackedTACBlock code) {
+        boolean checks = false;
+        for (int n = code.next(-1); n < code.size(); n = code.next(n)) {
+            if (code.getType(n) == TACOpType.CHECK) {
+                checks = true;
+                break;
+            }
+        }
+        if (!checks) {
+            return null;
+        }
+
+        TACSSA ssa = new TACSSA(this.narrowings(code));
+        // The optimiser may be shared between threads, so keep the state of
+        // each run separate.
+        Ranges ranges = new Ranges(ssa);
+        ranges.solve();
+        if (!ranges.removeChecks()) {
+            return null;
+        }
+        return ssa.toCode();
+    }
+
+    // Return a copy of the code, with a copy of each register compared by a
+    // conditional jump to itself at the start of each successor that can
+    // only be reached from that jump. Return the code itself if there are
+    // no such comparisons.
+    private PackedTACBlock narrowings(PackedTACBlock code) {
+        TACFlowGraph graph = TACFlowAnalysis.forCode(code).getGraph();
+        // The registers to copy at each location: before the operation
+        // there, or after it if it is the label of the successor.
+        Map<Integer, int[]> copies = new HashMap<Integer, int[]>();
+        for (int p = 0; p < graph.size(); p++) {
+            int jz = code.prev(graph.end(p));
+            if (jz < graph.start(p) || !TACOp.isBranch(code.getType(jz))) {
+                continue;
+            }
+            int[] compared = this.compared(code, graph.start(p), jz);
+            if (compared == null) {
+                continue;
+            }
+            int taken = graph.blockOf(graph.labelLoc(code.getLabelId(jz)));
+            int next = p + 1;
+            for (int s : new int[] { next, taken }) {
+                if (s >= graph.size() || graph.predCount(s) != 1 || taken == next) {
+                    continue;
+                }
+                int first = code.next(graph.start(s) - 1);
+                if (first < graph.end(s)) {
+                    copies.put(first, compared);
+                }
+            }
+        }
+        if (copies.isEmpty()) {
+            return code;
+        }
+
+        PackedTACBlock out = new PackedTACBlock(code.count() + 2 * copies.size());
+        for (int n = code.next(-1); n < code.size(); n = code.next(n)) {
+            int[] regs = copies.get(n);
+            boolean label = code.getType(n) == TACOpType.LABEL;
+            if (regs != null && !label) {
+                this.addCopies(out, regs);
+            }
+            out.add(code.getType(n), code.getR1(n), code.getR2(n), code.getR3(n),
+                    out.labelId(code.getLabel(n)), code.getN(n));
+            if (regs != null && label) {
+                this.addCopies(out, regs);
+            }
+        }
+        out.setResult(code.getResult());
+        return out;
+    }
+
+    // If the conditional jump at location jz jumps on the result of x < y,
+    // computed earlier in the same basic block (which starts at location
+    // start), and neither x nor y changes in between, return those of x and
+    // y that are renamed in SSA form. Otherwise, return null.
+    private int[] compared(PackedTACBlock code, int start, int jz) {
+        int c = code.getR1(jz);
+        for (int n = code.prev(jz); n >= start; n = code.prev(n)) {
+            if (code.def(n) != c) {
+                continue;
+            }
+            if (code.getType(n) != TACOpType.BINOP || code.getN(n) != LESS) {
+                return null;
+            }
+            int x = code.getR2(n);
+            int y = code.getR3(n);
+            for (int m = code.next(n); m < jz; m = code.next(m)) {
+                int e = code.def(m);
+                if (e == x || e == y) {
+                    return null;
+                }
+            }
+            List<Integer> regs = new ArrayList<Integer>();
+            if (TACSSA.isRenamed(x)) {
+                regs.add(x);
+            }
+            if (TACSSA.isRenamed(y) && y != x) {
+                regs.add(y);
+            }
+            if (regs.isEmpty()) {
+                return null;
+            }
+            int[] result = new int[regs.size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = regs.get(i);
+            }
+            return result;
+        }
+        return null;
+    }
+
+    // Append a copy of each register to itself.
+    private void addCopies(PackedTACBlock out, int[] regs) {
+        for (int r : regs) {
+            out.add(TACOpType.MOV, r, r, TACReg.NONE, PackedTACBlock.NO_LABEL, 0);
+        }
+    }
+
+    // The value range analysis of one block of code in SSA form.
+    private static class Ranges {
+
+        // After this many changes to a phi function's range, widen it.
+        private static final int WIDEN = 3;
+
+        private TACSSA ssa;
+        private PackedTACBlock code;
+        private TACFlowGraph graph;
+
+        // The range of each register, if known[r] is set. Otherwise, no value
+        // for the register has been found yet.
+        private long[] lo;
+        private long[] hi;
+        private BitSet known;
+        // The number of times each phi function's range has changed.
+        private int[] changes;
+
+        // The location of the operation defining each register, or -1.
+        private int[] defLoc;
+        // The register holding the length of each array allocated in this
+        // code, or TACReg.NONE.
+        private int[] length;
+        // The register each register is a copy of, through any number of
+        // copies and phi functions, or itself.
+        private int[] origin;
+        // For each copy narrowed by a comparison: the location of the
+        // comparison, and whether the comparison was true. Otherwise -1.
+        private int[] narrowedBy;
+        private BitSet narrowedTrue;
+
+        Ranges(TACSSA ssa) {
+            this.ssa = ssa;
+            this.code = ssa.getCode();
+            this.graph = ssa.getGraph();
+            int limit = ssa.regLimit();
+            this.lo = new long[limit];
+            this.hi = new long[limit];
+            this.known = new BitSet(limit);
+            this.changes = new int[limit];
+            this.defLoc = new int[limit];
+            this.length = new int[limit];
+            this.origin = new int[limit];
+            for (int r = 0; r < limit; r++) {
+                this.origin[r] = r;
+            }
+            this.narrowedBy = new int[this.code.size()];
+            this.narrowedTrue = new BitSet(this.code.size());
+            Arrays.fill(this.defLoc, -1);
+            Arrays.fill(this.narrowedBy, -1);
+
+            for (int n = 0; n < this.code.size(); n++) {
+                int d = this.code.def(n);
+                if (d != TACReg.NONE && !this.code.isDeleted(n)) {
+                    this.defLoc[d] = n;
+                }
+            }
+            // Registers never defined hold whatever they held on entry, and
+            // nothing is known about registers not renamed in SSA form.
+            for (int r = 0; r < limit; r++) {
+                if (this.defLoc[r] < 0 || !TACSSA.isRenamed(r)) {
+                    this.setFull(r);
+                }
+            }
+            for (int b = 0; b < this.graph.size(); b++) {
+                for (TACSSA.Phi phi : ssa.getPhis(b)) {
+                    this.known.clear(phi.getDef());
+                }
+            }
+
+            // Find the arrays and narrowed copies. Going in reverse postorder
+            // means the source of a copy is seen before the copy.
+            int[] rpo = this.graph.rpo();
+            for (int i = 0; i < rpo.length && this.graph.reachable(rpo[i]); i++) {
+                int b = rpo[i];
+                for (int n = this.graph.start(b); n < this.graph.end(b); n++) {
+                    if (this.code.isDeleted(n)) {
+                        continue;
+                    }
+                    TACOpType type = this.code.getType(n);
+                    if (!TACSSA.isRenamed(this.code.getR1(n))) {
+                        continue;
+                    }
+                    if (type == TACOpType.MALLOC) {
+                        // TACGenerator stores an array's length straight
+                        // after allocating it.
+                        int m = this.code.next(n);
+                        if (m < this.graph.end(b) && this.code.getType(m) == TACOpType.STORE
+                            && this.code.getR1(m) == this.code.getR1(n)) {
+                            this.length[this.code.getR1(n)] = this.code.getR2(m);
+                        }
+                    }
+                    else if (type == TACOpType.MOV) {
+                        this.findNarrowing(b, n);
+                    }
+                }
+            }
+            this.findOrigins();
+        }
+
+        // Find the origin of every register. A phi function whose arguments
+        // are all copies of the same register (or of the phi function
+        // itself, around a loop) is a copy of that register too.
+        //
+        // This is optimistic: the origins of copies and phi functions start
+        // unknown (TACReg.NONE), and a phi function only becomes its own
+        // origin once its arguments are seen to differ, after which it never
+        // changes again.
+        private void findOrigins() {
+            for (int b = 0; b < this.graph.size(); b++) {
+                for (TACSSA.Phi phi : this.ssa.getPhis(b)) {
+                    this.origin[phi.getDef()] = TACReg.NONE;
+                }
+            }
+            for (int n = 0; n < this.code.size(); n++) {
+                if (!this.code.isDeleted(n) && this.code.getType(n) == TACOpType.MOV
+                    && TACSSA.isRenamed(this.code.getR1(n)) && TACSSA.isRenamed(this.code.getR2(n))) {
+                    this.origin[this.code.getR1(n)] = TACReg.NONE;
+                }
+            }
+
+            int[] rpo = this.graph.rpo();
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                for (int i = 0; i < rpo.length && this.graph.reachable(rpo[i]); i++) {
+                    int b = rpo[i];
+                    for (TACSSA.Phi phi : this.ssa.getPhis(b)) {
+                        int d = phi.getDef();
+                        if (this.origin[d] == d) {
+                            continue;
+                        }
+                        int o = TACReg.NONE;
+                        for (int j = 0; j < phi.getArgCount() && o != d; j++) {
+                            int arg = phi.getArg(j);
+                            if (arg == TACReg.NONE) {
+                                o = d;
+                            }
+                            else if (this.origin[arg] != TACReg.NONE && this.origin[arg] != d && this.origin[arg] != o) {
+                                o = (o == TACReg.NONE) ? this.origin[arg] : d;
+                            }
+                        }
+                        if (this.origin[d] != o) {
+                            this.origin[d] = o;
+                            changed = true;
+                        }
+                    }
+                    for (int n = this.graph.start(b); n < this.graph.end(b); n++) {
+                        if (this.code.isDeleted(n) || this.code.getType(n) != TACOpType.MOV) {
+                            continue;
+                        }
+                        int d = this.code.getR1(n);
+                        int src = this.code.getR2(n);
+                        if (TACSSA.isRenamed(d) && TACSSA.isRenamed(src) && this.origin[d] != this.origin[src]) {
+                            this.origin[d] = this.origin[src];
+                            changed = true;
+                        }
+                    }
+                }
+            }
+
+            // Anything still unknown is only reached around a cycle of
+            // copies, so is left as its own origin.
+            for (int r = 0; r < this.origin.length; r++) {
+                if (this.origin[r] == TACReg.NONE) {
+                    this.origin[r] = r;
+                }
+            }
+        }
+
+        // If the copy at location n, in basic block b, is narrowed by the
+        // comparison that decides whether b is reached, record it.
+        private void findNarrowing(int b, int n) {
+            if (this.graph.predCount(b) != 1) {
+                return;
+            }
+            int p = this.graph.pred(b, 0);
+            int jz = this.code.prev(this.graph.end(p));
+            if (jz < this.graph.start(p) || !TACOp.isBranch(this.code.getType(jz))) {
+                return;
+            }
+            int cmp = this.defLoc[this.code.getR1(jz)];
+            if (cmp < 0 || this.code.getType(cmp) != TACOpType.BINOP || this.code.getN(cmp) != LESS) {
+                return;
+            }
+            int src = this.code.getR2(n);
+            if (!TACSSA.isRenamed(src) || (src != this.code.getR2(cmp) && src != this.code.getR3(cmp))) {
+                return;
+            }
+            int taken = this.graph.blockOf(this.graph.labelLoc(this.code.getLabelId(jz)));
+            if (taken == p + 1) {
+                return;
+            }
+            this.narrowedBy[n] = cmp;
+            // A JZ jumps when the comparison is false, and a JNZ when it is true.
+            if ((b != taken) == (this.code.getType(jz) == TACOpType.JZ)) {
+                this.narrowedTrue.set(n);
+            }
+        }
+
+        // Find the ranges of all registers.
+        void solve() {
+            int[] rpo = this.graph.rpo();
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                for (int i = 0; i < rpo.length && this.graph.reachable(rpo[i]); i++) {
+                    int b = rpo[i];
+                    for (TACSSA.Phi phi : this.ssa.getPhis(b)) {
+                        for (int j = 0; j < phi.getArgCount(); j++) {
+                            int arg = phi.getArg(j);
+                            if (arg != TACReg.NONE && this.known.get(arg)) {
+                                changed = this.widen(phi.getDef(), this.lo[arg], this.hi[arg]) || changed;
+                            }
+                        }
+                    }
+                    for (int n = this.graph.start(b); n < this.graph.end(b); n++) {
+                        if (!this.code.isDeleted(n)) {
+                            changed = this.evaluate(n) || changed;
+                        }
+                    }
+                }
+            }
+        }
+
+        // Evaluate operation n. Return whether its register's range changed.
+        private boolean evaluate(int n) {
+            int d = this.code.def(n);
+            if (d == TACReg.NONE || !TACSSA.isRenamed(d)) {
+                return false;
+            }
+            int a = this.code.getR2(n);
+            int b = this.code.getR3(n);
+            switch (this.code.getType(n)) {
+                case IMMED:
+                    return this.join(d, this.code.getN(n), this.code.getN(n));
+
+                case MOV: {
+                    if (!this.known.get(a)) {
+                        return false;
+                    }
+                    long newLo = this.lo[a];
+                    long newHi = this.hi[a];
+                    int cmp = this.narrowedBy[n];
+                    if (cmp >= 0) {
+                        int x = this.code.getR2(cmp);
+                        int y = this.code.getR3(cmp);
+                        if (!this.known.get(x) || !this.known.get(y)) {
+                            return false;
+                        }
+                        boolean isTrue = this.narrowedTrue.get(n);
+                        if (a == x) {
+                            // x < y, or x >= y.
+                            if (isTrue) {
+                                newHi = Math.min(newHi, this.hi[y] - 1);
+                            }
+                            else {
+                                newLo = Math.max(newLo, this.lo[y]);
+                            }
+                        }
+                        if (a == y) {
+                            // y > x, or y <= x.
+                            if (isTrue) {
+                                newLo = Math.max(newLo, this.lo[x] + 1);
+                            }
+                            else {
+                                newHi = Math.min(newHi, this.hi[x]);
+                            }
+                        }
+                        if (newLo > newHi) {
+                            // The comparison can never come out this way.
+                            return false;
+                        }
+                    }
+                    return this.join(d, newLo, newHi);
+                }
+
+                case BINOP: {
+                    int op = this.code.getN(n);
+                    if (op != LESS && op != PLUS && op != MINUS && op != TIMES) {
+                        return this.joinFull(d);
+                    }
+                    if (!this.known.get(a) || !this.known.get(b)) {
+                        return false;
+                    }
+                    long newLo;
+                    long newHi;
+                    if (op == LESS) {
+                        newLo = (this.lo[a] >= this.hi[b]) ? 0 : (this.hi[a] < this.lo[b]) ? 1 : 0;
+                        newHi = (this.lo[a] >= this.hi[b]) ? 0 : 1;
+                    }
+                    else if (op == PLUS) {
+                        newLo = this.lo[a] + this.lo[b];
+                        newHi = this.hi[a] + this.hi[b];
+                    }
+                    else if (op == MINUS) {
+                        newLo = this.lo[a] - this.hi[b];
+                        newHi = this.hi[a] - this.lo[b];
+                    }
+                    else {
+                        long p1 = this.lo[a] * this.lo[b];
+                        long p2 = this.lo[a] * this.hi[b];
+                        long p3 = this.hi[a] * this.lo[b];
+                        long p4 = this.hi[a] * this.hi[b];
+                        newLo = Math.min(Math.min(p1, p2), Math.min(p3, p4));
+                        newHi = Math.max(Math.max(p1, p2), Math.max(p3, p4));
+                    }
+                    if (newLo < Integer.MIN_VALUE || newHi > Integer.MAX_VALUE) {
+                        // The result may wrap around.
+                        return this.joinFull(d);
+                    }
+                    return this.join(d, newLo, newHi);
+                }
+
+                case LOAD:
+                    // The length of an array allocated here has the range of
+                    // the size it was allocated with.
+                    if (this.length[a] != TACReg.NONE) {
+                        int len = this.length[a];
+                        if (!this.known.get(len)) {
+                            return false;
+                        }
+                        return this.join(d, this.lo[len], this.hi[len]);
+                    }
+                    return this.joinFull(d);
+
+                default:
+                    return this.joinFull(d);
+            }
+        }
+
+        // Extend the range of register r to include newLo..newHi.
+        // Return whether it changed.
+        private boolean join(int r, long newLo, long newHi) {
+            if (!this.known.get(r)) {
+                this.known.set(r);
+                this.lo[r] = newLo;
+                this.hi[r] = newHi;
+                return true;
+            }
+            if (newLo >= this.lo[r] && newHi <= this.hi[r]) {
+                return false;
+            }
+            this.lo[r] = Math.min(this.lo[r], newLo);
+            this.hi[r] = Math.max(this.hi[r], newHi);
+            return true;
+        }
+
+        // Extend the range of a phi function's register r, as join() does.
+        // Every cycle in the code goes through a phi function, so if the
+        // range keeps growing, it is probably growing around a loop: jump
+        // straight to the limit of int.
+        private boolean widen(int r, long newLo, long newHi) {
+            if (!this.known.get(r) || (newLo >= this.lo[r] && newHi <= this.hi[r])) {
+                return this.join(r, newLo, newHi);
+            }
+            if (++this.changes[r] > WIDEN) {
+                newLo = (newLo < this.lo[r]) ? Integer.MIN_VALUE : newLo;
+                newHi = (newHi > this.hi[r]) ? Integer.MAX_VALUE : newHi;
+            }
+            return this.join(r, newLo, newHi);
+        }
+
+        private boolean joinFull(int r) {
+            return this.join(r, Integer.MIN_VALUE, Integer.MAX_VALUE);
+        }
+
+        private void setFull(int r) {
+            this.known.set(r);
+            this.lo[r] = Integer.MIN_VALUE;
+            this.hi[r] = Integer.MAX_VALUE;
+        }
+
+        // Remove the checks that can never fail.
+        // Return whether any were removed.
+        boolean removeChecks() {
+            TACDominators dom = this.ssa.getDominators();
+            // The checks kept so far, by array and index.
+            Map<Long, List<Integer>> kept = new HashMap<Long, List<Integer>>();
+            boolean removed = false;
+            // In a preorder walk of the dominator tree, any check that
+            // dominates another is seen first.
+            for (int b : dom.preorder()) {
+                for (int n = this.graph.start(b); n < this.graph.end(b); n++) {
+                    if (this.code.isDeleted(n) || this.code.getType(n) != TACOpType.CHECK) {
+                        continue;
+                    }
+                    int a = this.origin[this.code.getR1(n)];
+                    int i = this.code.getR2(n);
+                    long key = ((long) a << 32) | this.origin[i];
+                    if (this.inBounds(a, i) || this.checkedBefore(kept.get(key), b)) {
+                        this.code.delete(n);
+                        removed = true;
+                        continue;
+                    }
+                    if (!kept.containsKey(key)) {
+                        kept.put(key, new ArrayList<Integer>());
+                    }
+                    kept.get(key).add(n);
+                }
+            }
+            return removed;
+        }
+
+        // Is 0 <= i < a.length known?
+        private boolean inBounds(int a, int i) {
+            if (!this.known.get(i) || this.lo[i] < 0) {
+                return false;
+            }
+            int len = this.length[a];
+            if (len != TACReg.NONE && this.known.get(len) && this.hi[i] < this.lo[len]) {
+                return true;
+            }
+            // Follow copies of i back, looking for one narrowed by i < n.
+            for (int r = i; this.defLoc[r] >= 0 && this.code.getType(this.defLoc[r]) == TACOpType.MOV; ) {
+                int n = this.defLoc[r];
+                int cmp = this.narrowedBy[n];
+                if (cmp >= 0 && this.narrowedTrue.get(n) && this.code.getR2(cmp) == this.code.getR2(n)
+                    && this.isLength(this.code.getR3(cmp), a)) {
+                    return true;
+                }
+                r = this.code.getR2(n);
+            }
+            return false;
+        }
+
+        // Does register n hold the length of array a (which is its own
+        // origin)? It may be a copy of either the size the array was
+        // allocated with, or a load of the length from the array.
+        private boolean isLength(int n, int a) {
+            n = this.origin[n];
+            if (this.length[a] != TACReg.NONE && n == this.origin[this.length[a]]) {
+                return true;
+            }
+            int def = this.defLoc[n];
+            return def >= 0 && this.code.getType(def) == TACOpType.LOAD && this.origin[this.code.getR2(def)] == a;
+        }
+
+        // Has an identical check, at one of the locations given, been made
+        // on every path to basic block b? (As the checks are found in a
+        // preorder walk, one in b itself is earlier in b.)
+        private boolean checkedBefore(List<Integer> checks, int b) {
+            if (checks == null) {
+                return false;
+            }
+            TACDominators dom = this.ssa.getDominators();
+            for (int n : checks) {
+                if (dom.dominates(this.graph.blockOf(n), b)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,248 @@
+package babycino;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+// Global copy propagation.
+//
+// A copy "d = s" is available at a point in the code if it is executed on
+// every path to that point, and neither d nor s is redefined afterwards. A
+// use of d at that point can then use s instead. Once every use of d has
+// been rewritten, the copy itself is redundant, and TACDeadCodeOptimiser
+// removes it.
+//
+// The available copies are found with a forward data flow analysis over the
+// basic blocks of the flow graph, with one bit per copy in the code. A copy
+// is killed by any definition of either of its registers. Global variables
+// could be changed by the code called, so copies involving them are also
+// killed by calls.
+public class TACCopyPropagationOptimiser implements TACBlockOptimiser {
+
+    public TACCopyPropagationOptimiser() {
+
+    }
+
+    // Propagate copies through a TACBlock.
+    public TACBlock optimise(TACBlock code) {
+        PackedTACBlock result = this.optimise(PackedTACBlock.pack(code));
+        if (result == null) {
+            return null;
+        }
+        return result.unpack();
+    }
+
+    // Propagate copies through a PackedTACBlock, in place.
+    // Return the block, or null if no use was rewritten.
+    public PackedTACBlock optimise(PackedTACBlock code) {
+        TACFlowGraph graph = TACFlowAnalysis.forCode(code).getGraph();
+
+        // Number the copies, and list the copies each register is in.
+        int copies = 0;
+        int maxReg = 0;
+        for (int n = code.next(-1); n < code.size(); n = code.next(n)) {
+            maxReg = Math.max(maxReg, Math.max(code.getR1(n), Math.max(code.getR2(n), code.getR3(n))));
+            if (isCopy(code, n)) {
+                copies++;
+            }
+        }
+        if (copies == 0) {
+            return null;
+        }
+        // Where each copy is, and its source before any rewriting: the copy
+        // is only killed by redefining that register, so this is the source
+        // it is known to equal.
+        int[] copyLoc = new int[copies];
+        int[] copySrc = new int[copies];
+        BitSet[] mentions = new BitSet[maxReg + 1];
+        BitSet[] copiesTo = new BitSet[maxReg + 1];
+        BitSet global = new BitSet(copies);
+        {
+            int c = 0;
+            for (int n = code.next(-1); n < code.size(); n = code.next(n)) {
+                if (!isCopy(code, n)) {
+                    continue;
+                }
+                int d = code.getR1(n);
+                int s = code.getR2(n);
+                copyLoc[c] = n;
+                copySrc[c] = s;
+                setIn(mentions, d, c);
+                setIn(mentions, s, c);
+                setIn(copiesTo, d, c);
+                if (TACReg.isVG(d) || TACReg.isVG(s)) {
+                    global.set(c);
+                }
+                c++;
+            }
+        }
+
+        // Work out what each basic block adds to and removes from the set
+        // of available copies.
+        int blocks = graph.size();
+        BitSet[] gen = new BitSet[blocks];
+        BitSet[] kill = new BitSet[blocks];
+        {
+            int c = 0;
+            for (int b = 0; b < blocks; b++) {
+                gen[b] = new BitSet(copies);
+                kill[b] = new BitSet(copies);
+                for (int n = graph.start(b); n < graph.end(b); n++) {
+                    if (code.isDeleted(n)) {
+                        continue;
+                    }
+                    BitSet killed = killedBy(code, n, mentions, global);
+                    if (killed != null) {
+                        gen[b].andNot(killed);
+                        kill[b].or(killed);
+                    }
+                    if (isCopy(code, n)) {
+                        gen[b].set(c);
+                        kill[b].clear(c);
+                        c++;
+                    }
+                }
+            }
+        }
+
+        // Solve: a copy is available on entry to a basic block if it is
+        // available on exit from every predecessor. Start with everything
+        // available (except on entry to the code) and remove copies until
+        // nothing changes.
+        BitSet[] in = new BitSet[blocks];
+        BitSet[] out = new BitSet[blocks];
+        for (int b = 0; b < blocks; b++) {
+            in[b] = new BitSet(copies);
+            out[b] = new BitSet(copies);
+            out[b].set(0, copies);
+        }
+        int[] rpo = graph.rpo();
+        BitSet next = new BitSet(copies);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 0; i < blocks; i++) {
+                int b = rpo[i];
+                if (!graph.reachable(b)) {
+                    break;
+                }
+                in[b].clear();
+                if (b != 0) {
+                    in[b].set(0, copies);
+                    for (int p = 0; p < graph.predCount(b); p++) {
+                        if (graph.reachable(graph.pred(b, p))) {
+                            in[b].and(out[graph.pred(b, p)]);
+                        }
+                    }
+                }
+                next.clear();
+                next.or(in[b]);
+                next.andNot(kill[b]);
+                next.or(gen[b]);
+                if (!next.equals(out[b])) {
+                    out[b].clear();
+                    out[b].or(next);
+                    changed = true;
+                }
+            }
+        }
+
+        // Rewrite the uses in each reachable basic block, keeping track of
+        // the available copies through it.
+        boolean rewritten = false;
+        BitSet avail = new BitSet(copies);
+        int[] regs = new int[3];
+        for (int b = 0; b < blocks; b++) {
+            if (!graph.reachable(b)) {
+                continue;
+            }
+            avail.clear();
+            avail.or(in[b]);
+            for (int n = graph.start(b); n < graph.end(b); n++) {
+                if (code.isDeleted(n)) {
+                    continue;
+                }
+                TACOpType type = code.getType(n);
+                regs[0] = code.getR1(n);
+                regs[1] = code.getR2(n);
+                regs[2] = code.getR3(n);
+                boolean[] used = { TACOp.usesR1(type), TACOp.usesR2(type), TACOp.usesR3(type) };
+                boolean changedOp = false;
+                for (int f = 0; f < 3; f++) {
+                    if (!used[f]) {
+                        continue;
+                    }
+                    // Follow chains of copies (d = s1, s1 = s2, ...), all of
+                    // which hold here. There are no cycles, as each copy kills
+                    // any copy in the other direction.
+                    int src = availableSource(regs[f], avail, copiesTo, copySrc);
+                    while (src != TACReg.NONE) {
+                        regs[f] = src;
+                        changedOp = true;
+                        src = availableSource(regs[f], avail, copiesTo, copySrc);
+                    }
+                }
+                if (changedOp) {
+                    code.set(n, type, regs[0], regs[1], regs[2], code.getLabelId(n), code.getN(n));
+                    rewritten = true;
+                }
+
+                // Now update the available copies. A copy whose source was
+                // rewritten above is still tracked by its original source.
+                BitSet killed = killedBy(code, n, mentions, global);
+                if (killed != null) {
+                    avail.andNot(killed);
+                }
+                int c = Arrays.binarySearch(copyLoc, n);
+                if (c >= 0) {
+                    avail.set(c);
+                }
+            }
+        }
+
+        return rewritten ? code : null;
+    }
+
+    // Is operation n a copy that can be propagated?
+    private static boolean isCopy(PackedTACBlock code, int n) {
+        return code.getType(n) == TACOpType.MOV && code.getR1(n) != code.getR2(n);
+    }
+
+    // Record that copy c is in the set for register r.
+    private static void setIn(BitSet[] sets, int r, int c) {
+        if (sets[r] == null) {
+            sets[r] = new BitSet();
+        }
+        sets[r].set(c);
+    }
+
+    // Return the set of copies killed by operation n, or null if none.
+    // A new set is returned if it has to be combined from several.
+    private static BitSet killedBy(PackedTACBlock code, int n, BitSet[] mentions, BitSet global) {
+        int d = code.def(n);
+        BitSet killed = (d != TACReg.NONE && d < mentions.length) ? mentions[d] : null;
+        if (code.getType(n) == TACOpType.CALL && !global.isEmpty()) {
+            BitSet all = (BitSet) global.clone();
+            if (killed != null) {
+                all.or(killed);
+            }
+            killed = all;
+        }
+        return killed;
+    }
+
+    // Return the source of an available copy to register r, or TACReg.NONE.
+    // At most one copy to a register can be available at a time, as each
+    // copy kills the others to the same register.
+    private static int availableSource(int r, BitSet avail, BitSet[] copiesTo, int[] copySrc) {
+        if (r >= copiesTo.length || copiesTo[r] == null) {
+            return TACReg.NONE;
+        }
+        for (int c = copiesTo[r].nextSetBit(0); c >= 0; c = copiesTo[r].nextSetBit(c + 1)) {
+            if (avail.get(c)) {
+                return copySrc[c];
+            }
+        }
+        return TACReg.NONE;
+    }
+
+}
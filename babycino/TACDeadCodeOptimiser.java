@@ -1,6 +1,6 @@
 package babycino;
 
-import java.util.List;
+import java.util.BitSet;
 
 // Optimiser to remove unreachable, pointless or redundant code.
 public class TACDeadCodeOptimiser implements TACBlockOptimiser {
@@ -10,41 +10,74 @@ public class TACDeadCodeOptimiser implements TACBlockOptimiser {
 
     // Remove dead (unreachable) and redundant (unused) code from a TACBlock.
     public TACBlock optimise(TACBlock code) {
+        PackedTACBlock result = this.optimise(PackedTACBlock.pack(code));
+        if (result == null) {
+            return null;
+        }
+        return result.unpack();
+    }
+
+    // Remove dead (unreachable) and redundant (unused) code from a
+    // PackedTACBlock, in place.
+    public PackedTACBlock optimise(PackedTACBlock code) {
         // Use the flow analysis to discover what is dead.
-        TACFlowAnalysis flow = new TACFlowAnalysis(code);
-        TACBlock result = new TACBlock();
+        // The analysis is kept with the block and updated as code is deleted,
+        // so it need not be rebuilt next time.
+        TACFlowAnalysis flow = TACFlowAnalysis.forCode(code);
+        BitSet remove = new BitSet(code.size());
 
-        // Copy just the reachable, nonredundant code into the result.
-        for (int n = 0; n < code.size(); n++) {
+        // Find the unreachable and redundant code.
+        for (int n = code.next(-1); n < code.size(); n = code.next(n)) {
             // Eliminate unreachable code.
             if (!flow.reachable(n)) {
+                remove.set(n);
+                continue;
+            }
+            // Eliminate operations that do nothing.
+            if (code.getType(n) == TACOpType.NOP) {
+                remove.set(n);
                 continue;
             }
             // Eliminate unused labels.
             // Be careful not to eliminate the label at the start of a block.
-            if (code.get(n).getType() == TACOpType.LABEL && n > 0) {
-                List<Integer> preds = flow.pred(n);
-                if (preds.size() == 1 && (preds.get(0) == (n-1))) {
-                    continue;
-                }
+            if (code.getType(n) == TACOpType.LABEL && n > 0 && onlyFallenInto(flow, code, n)) {
+                remove.set(n);
+                continue;
             }
             // Eliminate definitions with no uses.
             if (flow.redundant(n)) {
+                remove.set(n);
                 continue;
             }
-            
-            // Preserve everything else.
-            result.add(code.get(n));
         }
 
         // If no code was removed, there was no optimisation.
-        if (result.size() == code.size()) {
+        if (remove.isEmpty()) {
             return null;
         }
 
-        // Otherwise, return the optimised code.
-        return result;
+        // Otherwise, delete the code and return the optimised block.
+        for (int n = remove.nextSetBit(0); n >= 0; n = remove.nextSetBit(n + 1)) {
+            code.delete(n);
+        }
+        return code;
     }
 
-}
+    // Is the location n only reached by falling through from the operation
+    // before it (ignoring any unreachable code)?
+    private static boolean onlyFallenInto(TACFlowAnalysis flow, PackedTACBlock code, int n) {
+        int prev = code.prev(n);
+        // The operation before may itself jump to the label.
+        if (prev >= 0 && TACFlowGraph.endsBlock(code.getType(prev)) && code.getLabelId(prev) == code.getLabelId(n)) {
+            return false;
+        }
+        for (int i = 0; i < flow.predCount(n); i++) {
+            int p = flow.pred(n, i);
+            if (p != prev && flow.reachable(p)) {
+                return false;
+            }
+        }
+        return true;
+    }
 
+}
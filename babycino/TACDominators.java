@@ -0,0 +1,278 @@
+package babycino;
+
+import java.util.Arrays;
+
+// The dominator tree and dominance frontiers of a TACFlowGraph.
+//
+// Basic block a dominates basic block b if every path from the start of the
+// code to b goes through a. The immediate dominator of b is the closest
+// basic block that strictly dominates it, and these form a tree rooted at the
+// first basic block. The dominance frontier of a is the set of basic blocks
+// where a's dominance ends: those with a predecessor that a dominates, but
+// which a does not strictly dominate themselves.
+//
+// The immediate dominators are found with the iterative algorithm of Cooper,
+// Harvey and Kennedy ("A Simple, Fast Dominance Algorithm"), which works on
+// the reverse postorder that TACFlowGraph already provides. Unreachable basic
+// blocks have no dominators, and are not in the tree.
+public class TACDominators {
+
+    // No basic block.
+    public static final int NONE = -1;
+
+    // The graph the dominators are for.
+    private TACFlowGraph graph;
+    // The immediate dominator of each basic block, or NONE for the first
+    // basic block and any unreachable basic blocks.
+    private int[] idom;
+    // The position of each basic block in reverse postorder.
+    private int[] order;
+
+    // The children of each basic block in the tree: children[childStart[b]]
+    // up to children[childStart[b+1]-1].
+    private int[] childStart;
+    private int[] children;
+    // The reachable basic blocks in a preorder walk of the tree.
+    private int[] preorder;
+    // The position of each basic block in the preorder walk, and the number of
+    // basic blocks in its subtree. Basic block a dominates b if and only if
+    // b's position is within the range covered by a's subtree.
+    private int[] pre;
+    private int[] subtree;
+
+    // The dominance frontier of each basic block, stored the same way as
+    // children.
+    private int[] frontierStart;
+    private int[] frontiers;
+
+    // Compute the dominators of a flow graph.
+    public TACDominators(TACFlowGraph graph) {
+        this.graph = graph;
+        this.buildIdoms();
+        this.buildTree();
+        this.buildFrontiers();
+    }
+
+    // Compute the immediate dominators.
+    private void buildIdoms() {
+        int size = this.graph.size();
+        int[] rpo = this.graph.rpo();
+        this.idom = new int[size];
+        this.order = new int[size];
+        Arrays.fill(this.idom, NONE);
+        Arrays.fill(this.order, Integer.MAX_VALUE);
+        int reachable = 0;
+        for (int i = 0; i < size; i++) {
+            if (!this.graph.reachable(rpo[i])) {
+                break;
+            }
+            this.order[rpo[i]] = i;
+            reachable++;
+        }
+        if (reachable == 0) {
+            return;
+        }
+
+        // The first basic block is temporarily its own dominator, so that the
+        // intersections below stop there.
+        this.idom[rpo[0]] = rpo[0];
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 1; i < reachable; i++) {
+                int b = rpo[i];
+                int newIdom = NONE;
+                for (int p = 0; p < this.graph.predCount(b); p++) {
+                    int pred = this.graph.pred(b, p);
+                    if (this.idom[pred] == NONE) {
+                        // Not processed yet, or unreachable.
+                        continue;
+                    }
+                    newIdom = (newIdom == NONE) ? pred : this.intersect(pred, newIdom);
+                }
+                if (newIdom != this.idom[b]) {
+                    this.idom[b] = newIdom;
+                    changed = true;
+                }
+            }
+        }
+        this.idom[rpo[0]] = NONE;
+    }
+
+    // Find the closest common dominator of two basic blocks, by walking up
+    // the (partial) tree from whichever is later in reverse postorder.
+    private int intersect(int a, int b) {
+        while (a != b) {
+            while (this.order[a] > this.order[b]) {
+                a = this.idom[a];
+            }
+            while (this.order[b] > this.order[a]) {
+                b = this.idom[b];
+            }
+        }
+        return a;
+    }
+
+    // Build the tree from the immediate dominators, and walk it.
+    private void buildTree() {
+        int size = this.graph.size();
+        this.childStart = new int[size + 1];
+        for (int b = 0; b < size; b++) {
+            if (this.idom[b] != NONE) {
+                this.childStart[this.idom[b] + 1]++;
+            }
+        }
+        for (int b = 0; b < size; b++) {
+            this.childStart[b+1] += this.childStart[b];
+        }
+        this.children = new int[this.childStart[size]];
+        int[] fill = Arrays.copyOf(this.childStart, size);
+        for (int b = 0; b < size; b++) {
+            if (this.idom[b] != NONE) {
+                this.children[fill[this.idom[b]]++] = b;
+            }
+        }
+
+        // Walk the tree with an explicit stack, as it can be deep.
+        this.pre = new int[size];
+        this.subtree = new int[size];
+        Arrays.fill(this.pre, NONE);
+        int count = 0;
+        int[] walk = new int[size];
+        if (size > 0 && this.graph.reachable(0)) {
+            int[] stack = new int[size];
+            int depth = 0;
+            stack[depth++] = 0;
+            while (depth > 0) {
+                int b = stack[--depth];
+                this.pre[b] = count;
+                walk[count++] = b;
+                // Push the children in reverse, so they come out in order.
+                for (int i = this.childStart[b+1] - 1; i >= this.childStart[b]; i--) {
+                    stack[depth++] = this.children[i];
+                }
+            }
+        }
+        this.preorder = Arrays.copyOf(walk, count);
+        // In preorder, a subtree is a contiguous range, so sizes can be summed
+        // from the end.
+        for (int i = count - 1; i >= 0; i--) {
+            int b = walk[i];
+            this.subtree[b]++;
+            if (this.idom[b] != NONE) {
+                this.subtree[this.idom[b]] += this.subtree[b];
+            }
+        }
+    }
+
+    // Compute the dominance frontiers. For each basic block b with more than
+    // one predecessor, walk up the tree from each predecessor until reaching
+    // b's immediate dominator, adding b to the frontier of each block passed.
+    private void buildFrontiers() {
+        int size = this.graph.size();
+        // Collect (block, frontier member) pairs, then sort them into place.
+        int[] from = new int[16];
+        int[] to = new int[16];
+        int count = 0;
+        for (int b = 0; b < size; b++) {
+            if (this.pre[b] == NONE || this.graph.predCount(b) < 2) {
+                continue;
+            }
+            for (int p = 0; p < this.graph.predCount(b); p++) {
+                int runner = this.graph.pred(b, p);
+                if (this.pre[runner] == NONE) {
+                    continue;
+                }
+                while (runner != NONE && runner != this.idom[b]) {
+                    if (count == from.length) {
+                        from = Arrays.copyOf(from, count * 2);
+                        to = Arrays.copyOf(to, count * 2);
+                    }
+                    // The same pair may be found along several paths.
+                    if (!this.inFrontier(runner, b, from, to, count)) {
+                        from[count] = runner;
+                        to[count] = b;
+                        count++;
+                    }
+                    runner = this.idom[runner];
+                }
+            }
+        }
+
+        this.frontierStart = new int[size + 1];
+        for (int i = 0; i < count; i++) {
+            this.frontierStart[from[i] + 1]++;
+        }
+        for (int b = 0; b < size; b++) {
+            this.frontierStart[b+1] += this.frontierStart[b];
+        }
+        this.frontiers = new int[count];
+        int[] fill = Arrays.copyOf(this.frontierStart, size);
+        for (int i = 0; i < count; i++) {
+            this.frontiers[fill[from[i]]++] = to[i];
+        }
+    }
+
+    // Has the pair (a, b) already been recorded? Pairs for the same b are
+    // recorded together, so only the pairs since the last change of b need
+    // checking.
+    private boolean inFrontier(int a, int b, int[] from, int[] to, int count) {
+        for (int i = count - 1; i >= 0 && to[i] == b; i--) {
+            if (from[i] == a) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // ------------------------------------------------------------------------
+    // Accessors:
+
+    // Return the flow graph the dominators are for.
+    public TACFlowGraph getGraph() {
+        return this.graph;
+    }
+
+    // Return the immediate dominator of basic block b, or NONE if it is the
+    // first basic block or unreachable.
+    public int idom(int b) {
+        return this.idom[b];
+    }
+
+    // Does basic block a dominate basic block b?
+    // Every reachable basic block dominates itself.
+    public boolean dominates(int a, int b) {
+        if (this.pre[a] == NONE || this.pre[b] == NONE) {
+            return false;
+        }
+        return this.pre[a] <= this.pre[b] && this.pre[b] < this.pre[a] + this.subtree[a];
+    }
+
+    // Return the number of children of basic block b in the tree.
+    public int childCount(int b) {
+        return this.childStart[b+1] - this.childStart[b];
+    }
+
+    // Return the i-th child of basic block b in the tree.
+    public int child(int b, int i) {
+        return this.children[this.childStart[b] + i];
+    }
+
+    // Return the reachable basic blocks in a preorder walk of the tree, so
+    // every basic block comes after its dominators.
+    // The array is shared, so must not be modified.
+    public int[] preorder() {
+        return this.preorder;
+    }
+
+    // Return the number of basic blocks in the dominance frontier of b.
+    public int frontierCount(int b) {
+        return this.frontierStart[b+1] - this.frontierStart[b];
+    }
+
+    // Return the i-th basic block in the dominance frontier of b.
+    public int frontier(int b, int i) {
+        return this.frontiers[this.frontierStart[b] + i];
+    }
+
+}
@@ -3,213 +3,292 @@ package babycino;
 import java.util.*;
 
 // Control and data flow analyses for Three Address Code.
+//
+// An analysis of a PackedTACBlock can be kept up to date as the code is
+// optimised, rather than recomputed from scratch each time (see forCode()).
+// When an operation is changed or deleted, the block calls replaced(), which
+// repairs the flow graph locally and marks the basic block as changed.
+// Liveness is then re-solved on the next query, re-summarising only the
+// changed basic blocks, and redundant definitions are only searched for
+// again in basic blocks whose summaries or live-out sets changed.
 public class TACFlowAnalysis {
 
     // The block of code being analysed.
-    private TACBlock code;
-    // Map giving the location of each label.
-    private Map<String, Integer> labelLocs;
-    // For each location, is it reachable?
-    private List<Boolean> reachables;
-    // For each location, which locations can precede it in execution?
-    private List<ArrayList<Integer>> preds;
+    private PackedTACBlock code;
+    // The control flow graph of the code, which all the analyses run on.
+    private TACFlowGraph graph;
+    // For each basic block, the registers it uses before defining them.
+    private BitSet[] gens;
+    // For each basic block, the registers it defines.
+    private BitSet[] kills;
+    // For each basic block, the set of registers live on entry to it.
+    private BitSet[] liveIns;
+    // For each basic block, the set of registers live on exit from it.
+    private BitSet[] liveOuts;
+    // The set of locations that make definitions which are never used.
+    private BitSet redundants;
+    // Basic blocks changed since liveness was last solved.
+    private BitSet dirty;
 
     // Set up analysis for a code block.
-    public TACFlowAnalysis(TACBlock code) {
+    public TACFlowAnalysis(PackedTACBlock code) {
         this.code = code;
-        // Locations of labels are cheap to find and nearly always needed.
-        this.buildLabelLocs();
+        // The flow graph is cheap to build and always needed.
+        this.graph = new TACFlowGraph(code);
     }
 
-    // Build a map from label names to locations.
-    private void buildLabelLocs() {
-        this.labelLocs = new HashMap<String, Integer>();
-        for (int n = 0; n < this.code.size(); n++) {
-            TACOp op = this.code.get(n);
-            if (op.getType() == TACOpType.LABEL) {
-                this.labelLocs.put(op.getLabel(), n);
-            }
-        }
+    // Set up analysis for an unpacked code block.
+    // Locations in the TACBlock are the same as in the packed copy.
+    public TACFlowAnalysis(TACBlock code) {
+        this(PackedTACBlock.pack(code));
     }
 
-    // Return a list of locations that can succeed (follow) a location in execution?
-    public List<Integer> succ(int n) {
-        // Don't generate a non-existent "next" instruction for the last in a block.
-        // For sensibly generated code, this ought not even to be possible,
-        // as the last operation will be return or unconditional jump.
-        boolean last = (n == this.code.size() - 1) ? true : false;
-        TACOp op = this.code.get(n);
-
-        switch (op.getType()) {
-            // Unconditional jumps can't fall through to the next operation.
-            case JMP:
-                return Collections.singletonList(this.labelLocs.get(op.getLabel()));
-            // Conditional jumps can fall through.
-            case JZ:
-                int dest = this.labelLocs.get(op.getLabel());
-                if (last) {
-                    return Collections.singletonList(dest);
-                }
-                else {
-                    return pairList(dest, n+1);
-                }
-            // Returns can't go anywhere (within the block).
-            case RET:
-                return Collections.emptyList();
-            // All other operations fall through.
-            // (Even for calls, execution resumes at the following operation.)
-            default:
-                if (last) {
-                    return Collections.emptyList();
-                }
-                else {
-                    return Collections.singletonList(n+1);
-                }
+    // Return the analysis of a packed code block, which is kept up to date as
+    // the block changes. It is only built the first time it is asked for.
+    public static TACFlowAnalysis forCode(PackedTACBlock code) {
+        if (code.flow == null) {
+            code.flow = new TACFlowAnalysis(code);
         }
+        return code.flow;
     }
 
-    // Return a list of instructions that can precede this instruction.
-    public List<Integer> pred(int n) {
-        // Compute this once, then cache it.
-        if (this.preds == null) {
-            this.buildPred();
+    // Return the control flow graph of the code.
+    public TACFlowGraph getGraph() {
+        return this.graph;
+    }
+
+    // Return the number of locations that can precede location n in execution.
+    // Deleted operations are skipped over.
+    public int predCount(int n) {
+        int b = this.graph.blockOf(n);
+        // Within a basic block, only the previous operation can precede.
+        if (this.code.prev(n) >= this.graph.start(b)) {
+            return 1;
         }
-        return this.preds.get(n);
+        return this.graph.predCount(b);
     }
 
-    // Helper method: return a list containing two elements.
-    private static <T> List<T> pairList(T a, T b) {
-        ArrayList<T> res = new ArrayList<T>();
-        res.add(a);
-        res.add(b);
-        return res;
+    // Return the i-th location that can precede location n in execution.
+    public int pred(int n, int i) {
+        int b = this.graph.blockOf(n);
+        int prev = this.code.prev(n);
+        if (prev >= this.graph.start(b)) {
+            return prev;
+        }
+        // Control enters a basic block from the last operation of another.
+        return this.code.prev(this.graph.end(this.graph.pred(b, i)));
     }
 
     // Return whether the operation at index n is reachable.
     public boolean reachable(int n) {
-        // Compute this once, then cache it.
-        if (this.reachables == null) {
-            this.buildReachable();
-        }
-        return this.reachables.get(n);
+        return this.graph.reachable(this.graph.blockOf(n));
     }
 
-    // Compute whether each operation is reachable.
-    private void buildReachable() {
-        // This is a simple search algorithm.
-        // It doesn't matter whether it's depth-first or breadth-first.
-        this.reachables = new ArrayList<Boolean>();
-        for (int n = 0; n < code.size(); n++) {
-            this.reachables.add(false);
-        }
+    // Is the operation at index n redundant?
+    // That is, does it make a definition that is never used?
+    public boolean redundant(int n) {
+        this.solve();
+        return this.redundants.get(n);
+    }
 
-        ArrayDeque<Integer> next = new ArrayDeque<Integer>();
-        if (!code.isEmpty()) {
-            next.add(0);
-        }
-        
-        while (!next.isEmpty()) {
-            int here = next.remove();
-            
-            if (this.reachables.get(here)) {
-                continue;
+    // Is the register r live on exit from the operation at index n?
+    public boolean liveOut(int n, int r) {
+        this.solve();
+        // Work backwards from the end of the basic block to the operation.
+        int b = this.graph.blockOf(n);
+        for (int m = this.graph.end(b) - 1; m > n; m--) {
+            if (this.code.firstUse(m) == r || this.code.secondUse(m) == r) {
+                return true;
+            }
+            if (this.code.def(m) == r) {
+                return false;
             }
-            this.reachables.set(here, true);
-            next.addAll(this.succ(here));
         }
+        return this.liveOuts[b].get(r);
+    }
+
+    // Return the set of registers live on entry to basic block b.
+    // The set is shared, so must not be modified.
+    BitSet blockLiveIn(int b) {
+        this.solve();
+        return this.liveIns[b];
+    }
+
+    // Return the set of registers live on exit from basic block b.
+    // The set is shared, so must not be modified.
+    BitSet blockLiveOut(int b) {
+        this.solve();
+        return this.liveOuts[b];
     }
 
-    // Compute the possible predecessors of each operation.
-    public void buildPred() {
-        // Effectively, succ() gives us an adjacency list representation of the
-        // block's flow graph. Reverse every edge to get the backwards graph.
-        // Note that, while the forwards flow graph can have at most 2 out-edges
-        // from every node, the backwards flow graph could have arbitrarily many,
-        // although most nodes will have 1 and few will have more than 2.
-        this.preds = new ArrayList<ArrayList<Integer>>();
-        for (int n = 0; n < code.size(); n++) {
-            this.preds.add(new ArrayList<Integer>());
+    // ------------------------------------------------------------------------
+    // Keeping the analysis up to date:
+
+    // Record that operation n has been changed in place (possibly deleted).
+    // It used to have type oldType and label oldLabel.
+    void replaced(int n, TACOpType oldType, int oldLabel) {
+        if (!this.graph.canRepair(n, oldType)) {
+            // The basic blocks have changed, so start again.
+            this.graph = new TACFlowGraph(this.code);
+            this.redundants = null;
+            return;
         }
-        for (int from = 0; from < code.size(); from++) {
-            for (Integer to : this.succ(from)) {
-                if (!this.preds.get(to).contains(from)) {
-                    this.preds.get(to).add(from);
-                }
-            }
+        this.graph.repair(n, oldType, oldLabel);
+        if (this.dirty != null) {
+            this.dirty.set(this.graph.blockOf(n));
         }
     }
 
-    private List<String> uses(int n) {
-        TACOp op = this.code.get(n);
-        switch (op.getType()) {
-            // Uses r1 only:
-            case PARAM:
-            case CALL:
-            case JZ:
-            case WRITE:
-                return Collections.singletonList(op.getR1());
-            
-            // Uses r2 only:
-            case MOV:
-            case LOAD:
-            case MALLOC:
-                return Collections.singletonList(op.getR2());
+    // ------------------------------------------------------------------------
+    // Liveness:
 
-            // Uses r1 and r2:
-            case STORE:
-                return pairList(op.getR1(), op.getR2());
+    // Solve the backward liveness problem over the basic blocks, then record
+    // which operations make definitions that are never used.
+    //
+    // Encoded registers are used directly as bit numbers. Each basic block
+    // gets bitsets of the registers live on entry and exit, grown until they
+    // stop changing. Afterwards, one backward scan over each basic block finds
+    // the definitions that are not live immediately afterwards.
+    //
+    // If liveness has been solved before, only the basic blocks changed since
+    // then are summarised again. The fixed point is then found again from
+    // scratch, as removing code can make the live sets shrink.
+    private void solve() {
+        int blocks = this.graph.size();
+        BitSet rescan;
 
-            // Uses r2 and r3:
-            case BINOP:
-                return pairList(op.getR2(), op.getR3());
+        if (this.redundants == null) {
+            // Summarise every basic block.
+            this.gens = new BitSet[blocks];
+            this.kills = new BitSet[blocks];
+            this.liveIns = new BitSet[blocks];
+            this.liveOuts = new BitSet[blocks];
+            this.redundants = new BitSet(this.code.size());
+            for (int b = 0; b < blocks; b++) {
+                this.gens[b] = new BitSet();
+                this.kills[b] = new BitSet();
+                this.liveIns[b] = new BitSet();
+                this.liveOuts[b] = new BitSet();
+                this.summarise(b);
+            }
+            rescan = new BitSet(blocks);
+            rescan.set(0, blocks);
+        }
+        else if (this.dirty.isEmpty()) {
+            // Nothing has changed.
+            return;
+        }
+        else {
+            // Summarise just the basic blocks that changed.
+            rescan = (BitSet) this.dirty.clone();
+            for (int b = this.dirty.nextSetBit(0); b >= 0; b = this.dirty.nextSetBit(b + 1)) {
+                this.summarise(b);
+            }
+        }
+        this.dirty = new BitSet(blocks);
 
-            // A return implicitly uses r0.
-            case RET:
-                return Collections.singletonList("r0");
-            
-            // Anything else uses nothing:
-            default:
-                return Collections.emptyList();
+        // Start again from the smallest possible live sets, keeping the old
+        // live-out sets to see which have changed.
+        BitSet[] oldOuts = this.liveOuts;
+        this.liveOuts = new BitSet[blocks];
+        for (int b = 0; b < blocks; b++) {
+            this.liveIns[b].clear();
+            this.liveIns[b].or(this.gens[b]);
+            this.liveOuts[b] = new BitSet();
         }
-    }
 
-    // Return a list of registers operation n defines.
-    private List<String> defs(int n) {
-        TACOp op = this.code.get(n);
-        switch (op.getType()) {
-            // These operations define r1.
-            case MOV:
-            case IMMED:
-            case LOAD:
-            case BINOP:
-            case MALLOC:
-            case READ:
-            case ADDROF:
-                return Collections.singletonList(op.getR1());
+        // Visiting basic blocks in postorder (reverse postorder of the reversed
+        // flow graph) means that, outside of loops, the successors of a block
+        // are finished before it is visited, so few passes are needed.
+        int[] rpo = this.graph.rpo();
+        BitSet live = new BitSet();
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = rpo.length - 1; i >= 0; i--) {
+                int b = rpo[i];
+                // live-out = union of successors' live-in
+                BitSet out = this.liveOuts[b];
+                for (int s = 0; s < this.graph.succCount(b); s++) {
+                    out.or(this.liveIns[this.graph.succ(b, s)]);
+                }
+                // live-in = gen + (live-out - kill)
+                live.clear();
+                live.or(out);
+                live.andNot(this.kills[b]);
+                live.or(this.gens[b]);
+                if (!live.equals(this.liveIns[b])) {
+                    this.liveIns[b].or(live);
+                    changed = true;
+                }
+            }
+        }
 
-            // A call may put a result in r0.
-            case CALL:
-                return Collections.singletonList("r0");
+        // Now find the redundant definitions with a scan of each basic block
+        // that has changed, or whose live-out set has changed.
+        for (int b = 0; b < blocks; b++) {
+            if (!oldOuts[b].equals(this.liveOuts[b])) {
+                rescan.set(b);
+            }
+        }
+        for (int b = rescan.nextSetBit(0); b >= 0; b = rescan.nextSetBit(b + 1)) {
+            this.findRedundant(b, live);
+        }
+    }
 
-            // Everything else defines nothing.
-            default:
-                return Collections.emptyList();
+    // Compute the gen and kill sets of basic block b by scanning it backwards.
+    private void summarise(int b) {
+        BitSet gen = this.gens[b];
+        BitSet kill = this.kills[b];
+        gen.clear();
+        kill.clear();
+        for (int n = this.graph.end(b) - 1; n >= this.graph.start(b); n--) {
+            int d = this.code.def(n);
+            if (d != TACReg.NONE) {
+                kill.set(d);
+                gen.clear(d);
+            }
+            int u1 = this.code.firstUse(n);
+            if (u1 != TACReg.NONE) {
+                gen.set(u1);
+            }
+            int u2 = this.code.secondUse(n);
+            if (u2 != TACReg.NONE) {
+                gen.set(u2);
+            }
         }
     }
 
-    // Is the operation at index n redundant?
-    // That is, does it make a definition that is never used?
-    public boolean redundant(int n) {
-        // A more efficient route might be to work backwards from uses to
-        // definitions, particularly as every use ought to have a definition
-        // and often these are close together. When working forwards from
-        // definitions, we can stop at the first use, but if there is none,
-        // we may traverse the whole block.
+    // Find the redundant definitions in basic block b by scanning it
+    // backwards from its live-out set. The live set is scratch space.
+    private void findRedundant(int b, BitSet live) {
+        live.clear();
+        live.or(this.liveOuts[b]);
+        for (int n = this.graph.end(b) - 1; n >= this.graph.start(b); n--) {
+            this.redundants.clear(n);
+            int d = this.code.def(n);
+            if (d != TACReg.NONE) {
+                if (!live.get(d) && this.removable(n)) {
+                    this.redundants.set(n);
+                }
+                live.clear(d);
+            }
+            int u1 = this.code.firstUse(n);
+            if (u1 != TACReg.NONE) {
+                live.set(u1);
+            }
+            int u2 = this.code.secondUse(n);
+            if (u2 != TACReg.NONE) {
+                live.set(u2);
+            }
+        }
+    }
 
-        TACOp op = this.code.get(n);
+    // Could operation n be removed if its definition is never used?
+    private boolean removable(int n) {
         // Many operations are executed for side effects, so check against
         // this whitelist before proceeding.
-        switch (op.getType()) {
+        switch (this.code.getType(n)) {
             case MOV:
             case IMMED:
             case LOAD:
@@ -219,48 +298,13 @@ public class TACFlowAnalysis {
             default:
                 return false;
         }
-
-        // Now we do a breadth-first search for uses.
-        for (String def : this.defs(n)) {
-            // Assignments to global variables are harder to flag as redundant,
-            // as we would need to check that all paths make a new definition
-            // before any use or potential use (through a call).
-            // So assume they are always needed.
-            // (This never happens for our code anyway, as all assignments to
-            // global variables are the result of memory allocation.)
-            if (def.startsWith("vg")) {
-                return false;
-            }
-
-            boolean[] seen = new boolean[(this.code.size())];
-            ArrayDeque<Integer> next = new ArrayDeque<Integer>();
-            
-            next.addAll(this.succ(n));
-            while (!next.isEmpty()) {
-                int here = next.remove();
-                // Process each location only once to avoid an infinite loop.
-                if (seen[here]) {
-                    continue;
-                }
-                seen[here] = true;
-
-                // A use of the register means the definition was not redundant.
-                if (this.uses(here).contains(def)) {
-                    return false;
-                }
-
-                // A new definition means, on this path, the original was redundant.
-                if (this.defs(here).contains(def)) {
-                    continue;
-                }
-                
-                // Keep searching.
-                next.addAll(this.succ(here));
-            }
-        }
-        
-        // If no use of the definition was found, the code is redundant.
-        return true;
+        // Assignments to global variables are harder to flag as redundant,
+        // as we would need to check that all paths make a new definition
+        // before any use or potential use (through a call).
+        // So assume they are always needed.
+        // (This never happens for our code anyway, as all assignments to
+        // global variables are the result of memory allocation.)
+        return !TACReg.isVG(this.code.getR1(n));
     }
-}
 
+}
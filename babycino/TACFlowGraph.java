@@ -0,0 +1,415 @@
+package babycino;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+// The control flow graph of a block of Three Address Code.
+//
+// The nodes of the graph are basic blocks: maximal runs of operations that
+// can only be entered at the first operation and only left at the last.
+// These are computed once, from the LABEL, JMP, JZ, JNZ and RET operations.
+//
+// Edges are stored in "compressed sparse row" form: the successors of basic
+// block b are succs[succStart(b)] onwards, and similarly for predecessors.
+// This avoids an object per node or per edge. Every basic block has at most
+// 2 successors, so successors get a fixed 2 slots each. Predecessors are
+// packed tightly, with a count per basic block so edges can be removed
+// without moving the others.
+//
+// The graph can be repaired after an operation is changed or deleted (see
+// TACFlowAnalysis.replaced()), rather than rebuilt. After repairs, the basic
+// blocks may no longer be maximal (e.g. if a label is deleted, the basic
+// blocks either side of it stay separate), but they are still valid.
+public class TACFlowGraph {
+
+    // The block of code the graph describes.
+    private PackedTACBlock code;
+    // The location of each label, indexed by label id, or -1 if absent.
+    private int[] labelLocs;
+
+    // The number of basic blocks.
+    private int size;
+    // The location of the first operation in each basic block.
+    // starts[size] is the size of the code, so basic block b runs from
+    // starts[b] to starts[b+1]-1.
+    private int[] starts;
+    // For each location, the number of the basic block that contains it.
+    private int[] blockOf;
+
+    // Successor and predecessor edges between basic blocks.
+    private int[] succCount;
+    private int[] succs;
+    private int[] predStart;
+    private int[] predCount;
+    private int[] preds;
+
+    // The set of basic blocks reachable from the start of the code.
+    private BitSet reachable;
+    // Basic blocks in reverse postorder of a depth-first search from the
+    // start of the code, followed by any unreachable basic blocks.
+    private int[] rpo;
+    // Do reachable and rpo need recomputing after the edges changed?
+    private boolean orderDirty;
+
+    // Build the graph for a code block.
+    public TACFlowGraph(PackedTACBlock code) {
+        this.code = code;
+        this.buildLabelLocs();
+        this.buildBlocks();
+        this.buildEdges();
+        this.buildOrder();
+    }
+
+    // Build a table from label ids to locations.
+    private void buildLabelLocs() {
+        this.labelLocs = new int[this.code.labelCount()];
+        Arrays.fill(this.labelLocs, -1);
+        for (int n = 0; n < this.code.size(); n++) {
+            if (this.code.getType(n) == TACOpType.LABEL) {
+                this.labelLocs[this.code.getLabelId(n)] = n;
+            }
+        }
+    }
+
+    // Split the code into basic blocks.
+    private void buildBlocks() {
+        int length = this.code.size();
+
+        // A basic block starts at the start of the code, at every label, and
+        // after every operation that can transfer control elsewhere.
+        boolean[] leader = new boolean[length];
+        int count = 0;
+        for (int n = 0; n < length; n++) {
+            TACOpType type = this.code.getType(n);
+            if (n == 0 || type == TACOpType.LABEL) {
+                leader[n] = true;
+            }
+            if (endsBlock(type) && n + 1 < length) {
+                leader[n+1] = true;
+            }
+        }
+        for (int n = 0; n < length; n++) {
+            if (leader[n]) {
+                count++;
+            }
+        }
+
+        this.size = count;
+        this.starts = new int[count + 1];
+        this.blockOf = new int[length];
+        int b = -1;
+        for (int n = 0; n < length; n++) {
+            if (leader[n]) {
+                b++;
+                this.starts[b] = n;
+            }
+            this.blockOf[n] = b;
+        }
+        this.starts[count] = length;
+    }
+
+    // Does an operation of this type end a basic block?
+    static boolean endsBlock(TACOpType type) {
+        return TACOp.jumps(type) || type == TACOpType.RET;
+    }
+
+    // Compute the successor and predecessor edges of every basic block.
+    private void buildEdges() {
+        this.succCount = new int[this.size];
+        this.succs = new int[2 * this.size];
+        for (int b = 0; b < this.size; b++) {
+            this.findSuccs(b);
+        }
+        this.buildPreds();
+    }
+
+    // Work out the successors of basic block b from its last operation.
+    private void findSuccs(int b) {
+        int count = 0;
+        int last = this.lastLive(b);
+        boolean hasNext = (b + 1 < this.size);
+
+        // A basic block whose operations have all been deleted falls through.
+        TACOpType type = (last < 0) ? TACOpType.NOP : this.code.getType(last);
+        switch (type) {
+            // Unconditional jumps can't fall through to the next block.
+            case JMP:
+                this.succs[2*b + count++] = this.labelBlock(last);
+                break;
+            // Conditional jumps can fall through.
+            case JZ:
+            case JNZ:
+                this.succs[2*b + count++] = this.labelBlock(last);
+                if (hasNext && this.succs[2*b] != b + 1) {
+                    this.succs[2*b + count++] = b + 1;
+                }
+                break;
+            // Returns can't go anywhere (within the block).
+            case RET:
+                break;
+            // All other operations fall through.
+            // (Even for calls, execution resumes at the following operation.)
+            default:
+                if (hasNext) {
+                    this.succs[2*b + count++] = b + 1;
+                }
+                break;
+        }
+        this.succCount[b] = count;
+    }
+
+    // Return the basic block of the label that operation n jumps to.
+    private int labelBlock(int n) {
+        return this.blockOf[this.labelLocs[this.code.getLabelId(n)]];
+    }
+
+    // Return the location of the last operation in basic block b that has
+    // not been deleted, or -1 if there is none.
+    private int lastLive(int b) {
+        for (int n = this.starts[b+1] - 1; n >= this.starts[b]; n--) {
+            if (!this.code.isDeleted(n)) {
+                return n;
+            }
+        }
+        return -1;
+    }
+
+    // Reverse every edge to get the predecessors.
+    private void buildPreds() {
+        this.predStart = new int[this.size + 1];
+        this.predCount = new int[this.size];
+        for (int from = 0; from < this.size; from++) {
+            for (int i = 0; i < this.succCount[from]; i++) {
+                this.predStart[this.succs[2*from + i] + 1]++;
+            }
+        }
+        for (int b = 0; b < this.size; b++) {
+            this.predStart[b+1] += this.predStart[b];
+        }
+        this.preds = new int[this.predStart[this.size]];
+        for (int from = 0; from < this.size; from++) {
+            for (int i = 0; i < this.succCount[from]; i++) {
+                int to = this.succs[2*from + i];
+                this.preds[this.predStart[to] + this.predCount[to]] = from;
+                this.predCount[to]++;
+            }
+        }
+    }
+
+    // Find the reachable basic blocks and a reverse postorder over them.
+    private void buildOrder() {
+        this.reachable = new BitSet(this.size);
+        int[] post = new int[this.size];
+        int count = 0;
+
+        // Iterative depth-first search, to avoid deep recursion on long code.
+        // The stack holds basic blocks and the index of the next edge to follow.
+        int[] stack = new int[this.size];
+        int[] next = new int[this.size];
+        int depth = 0;
+        if (this.size > 0) {
+            this.reachable.set(0);
+            stack[depth] = 0;
+            next[depth] = 0;
+            depth++;
+        }
+        while (depth > 0) {
+            int here = stack[depth-1];
+            if (next[depth-1] < this.succCount[here]) {
+                int to = this.succs[2*here + next[depth-1]++];
+                if (!this.reachable.get(to)) {
+                    this.reachable.set(to);
+                    stack[depth] = to;
+                    next[depth] = 0;
+                    depth++;
+                }
+            }
+            else {
+                post[count++] = here;
+                depth--;
+            }
+        }
+
+        this.rpo = new int[this.size];
+        for (int i = 0; i < count; i++) {
+            this.rpo[i] = post[count - 1 - i];
+        }
+        for (int b = this.reachable.nextClearBit(0); b < this.size; b = this.reachable.nextClearBit(b + 1)) {
+            this.rpo[count++] = b;
+        }
+        this.orderDirty = false;
+    }
+
+    // ------------------------------------------------------------------------
+    // Repairs after changes to the code:
+
+    // Can the graph be repaired after operation n changed from oldType to its
+    // current type? If not, it must be rebuilt.
+    boolean canRepair(int n, TACOpType oldType) {
+        TACOpType newType = this.code.getType(n);
+        int b = this.blockOf[n];
+        // A new label or jump in the middle of a basic block would split it.
+        if (newType == TACOpType.LABEL && oldType != TACOpType.LABEL && this.starts[b] != n) {
+            return false;
+        }
+        if (endsBlock(newType) && !endsBlock(oldType) && this.starts[b+1] != n + 1) {
+            return false;
+        }
+        // Labels must already have been known when the graph was built.
+        if (newType == TACOpType.LABEL || endsBlock(newType)) {
+            int label = this.code.getLabelId(n);
+            if (label >= this.labelLocs.length) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Update the graph after operation n changed from oldType/oldLabel.
+    // Only call this if canRepair() returned true.
+    void repair(int n, TACOpType oldType, int oldLabel) {
+        TACOpType newType = this.code.getType(n);
+        int b = this.blockOf[n];
+
+        if (oldType == TACOpType.LABEL && this.labelLocs[oldLabel] == n) {
+            this.labelLocs[oldLabel] = -1;
+        }
+        if (newType == TACOpType.LABEL) {
+            this.labelLocs[this.code.getLabelId(n)] = n;
+        }
+
+        // Only the last operation in a basic block determines its edges,
+        // but deleting an operation may make an earlier one the last.
+        if (endsBlock(oldType) || endsBlock(newType) || n == this.starts[b+1] - 1 || this.lastLive(b) < n) {
+            this.repairEdges(b);
+        }
+    }
+
+    // Recompute the out-edges of basic block b, and fix the in-edges of the
+    // basic blocks it used to and now does go to.
+    private void repairEdges(int b) {
+        int oldCount = this.succCount[b];
+        int old0 = (oldCount > 0) ? this.succs[2*b] : -1;
+        int old1 = (oldCount > 1) ? this.succs[2*b + 1] : -1;
+        this.findSuccs(b);
+        int newCount = this.succCount[b];
+        int new0 = (newCount > 0) ? this.succs[2*b] : -1;
+        int new1 = (newCount > 1) ? this.succs[2*b + 1] : -1;
+
+        // Remove edges that have gone.
+        if (old0 >= 0 && old0 != new0 && old0 != new1) {
+            this.removePred(old0, b);
+        }
+        if (old1 >= 0 && old1 != new0 && old1 != new1) {
+            this.removePred(old1, b);
+        }
+        // Add edges that are new. If there is no room, rebuild all of them.
+        if ((new0 >= 0 && new0 != old0 && new0 != old1 && !this.addPred(new0, b)) ||
+            (new1 >= 0 && new1 != old0 && new1 != old1 && !this.addPred(new1, b))) {
+            this.buildPreds();
+        }
+        if (old0 != new0 || old1 != new1) {
+            this.orderDirty = true;
+        }
+    }
+
+    // Remove the edge from basic block from to basic block to, from the
+    // predecessors of to.
+    private void removePred(int to, int from) {
+        int base = this.predStart[to];
+        for (int i = 0; i < this.predCount[to]; i++) {
+            if (this.preds[base + i] == from) {
+                // Move the last predecessor into the gap.
+                this.predCount[to]--;
+                this.preds[base + i] = this.preds[base + this.predCount[to]];
+                return;
+            }
+        }
+    }
+
+    // Add an edge from basic block from to basic block to, to the
+    // predecessors of to. Return false if there is no room.
+    private boolean addPred(int to, int from) {
+        if (this.predStart[to] + this.predCount[to] >= this.predStart[to+1]) {
+            return false;
+        }
+        this.preds[this.predStart[to] + this.predCount[to]] = from;
+        this.predCount[to]++;
+        return true;
+    }
+
+    // ------------------------------------------------------------------------
+    // Accessors:
+
+    // Return the code block the graph describes.
+    public PackedTACBlock getCode() {
+        return this.code;
+    }
+
+    // Return the number of basic blocks.
+    public int size() {
+        return this.size;
+    }
+
+    // Return the location of the first operation in basic block b.
+    public int start(int b) {
+        return this.starts[b];
+    }
+
+    // Return the location after the last operation in basic block b.
+    public int end(int b) {
+        return this.starts[b+1];
+    }
+
+    // Return the basic block containing location n.
+    public int blockOf(int n) {
+        return this.blockOf[n];
+    }
+
+    // Return the location of a label id, or -1 if it is not in the code.
+    public int labelLoc(int label) {
+        if (label >= this.labelLocs.length) {
+            return -1;
+        }
+        return this.labelLocs[label];
+    }
+
+    // Return the number of successors of basic block b.
+    public int succCount(int b) {
+        return this.succCount[b];
+    }
+
+    // Return the i-th successor of basic block b.
+    public int succ(int b, int i) {
+        return this.succs[2*b + i];
+    }
+
+    // Return the number of predecessors of basic block b.
+    public int predCount(int b) {
+        return this.predCount[b];
+    }
+
+    // Return the i-th predecessor of basic block b.
+    public int pred(int b, int i) {
+        return this.preds[this.predStart[b] + i];
+    }
+
+    // Is basic block b reachable from the start of the code?
+    public boolean reachable(int b) {
+        if (this.orderDirty) {
+            this.buildOrder();
+        }
+        return this.reachable.get(b);
+    }
+
+    // Return the basic blocks in reverse postorder. Unreachable basic blocks
+    // come at the end, in no particular order.
+    // The array is shared, so must not be modified.
+    public int[] rpo() {
+        if (this.orderDirty) {
+            this.buildOrder();
+        }
+        return this.rpo;
+    }
+
+}
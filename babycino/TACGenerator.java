@@ -38,13 +38,16 @@ public class TACGenerator extends MiniJavaBaseVisitor<TACBlock> {
     int labels;
     Class current;
     Method method;
+    // Generate bounds checks for array accesses?
+    boolean checked;
 
-    public TACGenerator(SymbolTable sym, Class current) {
+    public TACGenerator(SymbolTable sym, Class current, boolean checked) {
         this.sym = sym;
         this.regs = 1;
         this.labels = 0;
         this.current = current;
         this.method = null;
+        this.checked = checked;
     }
 
     // Generate code for method's statements and return expression.
@@ -72,7 +75,7 @@ public class TACGenerator extends MiniJavaBaseVisitor<TACBlock> {
         result.addAll(ret);
         // Move the result of the return expression into the distinguished
         // register r0 for function results.
-        result.add(TACOp.mov("r0", ret.getResult()));
+        result.add(TACOp.mov(TACReg.R0, ret.getResult()));
         result.add(TACOp.ret());
 
         return result;
@@ -94,14 +97,13 @@ public class TACGenerator extends MiniJavaBaseVisitor<TACBlock> {
 
     public TACBlock visitStmtIf(MiniJavaParser.StmtIfContext ctx) {
         TACBlock result = new TACBlock();
-        TACBlock expr = this.visit(ctx.expression());
-        TACBlock ifTrue = this.visit(ctx.statement(0));
         String labelElse = this.genlab();
+        TACBlock cond = this.condition(ctx.expression(), labelElse, false);
+        TACBlock ifTrue = this.visit(ctx.statement(0));
         TACBlock ifFalse = this.visit(ctx.statement(1));
         String labelEnd = this.genlab();
         
-        result.addAll(expr);
-        result.add(TACOp.jz(expr.getResult(), labelElse));
+        result.addAll(cond);
         result.addAll(ifTrue);
         result.add(TACOp.jmp(labelEnd));
         result.add(TACOp.label(labelElse));
@@ -115,15 +117,11 @@ public class TACGenerator extends MiniJavaBaseVisitor<TACBlock> {
         TACBlock result = new TACBlock();
         String labelStart = this.genlab();
         TACBlock body = this.visit(ctx.statement());
-        TACBlock expr = this.visit(ctx.expression());
-        String labelEnd = this.genlab();
+        TACBlock cond = this.condition(ctx.expression(), labelStart, true);
 
         result.add(TACOp.label(labelStart));
         result.addAll(body);
-        result.addAll(expr);
-        result.add(TACOp.jz(expr.getResult(), labelEnd));
-        result.add(TACOp.jmp(labelStart));
-        result.add(TACOp.label(labelEnd));
+        result.addAll(cond);
 
         return result;
     }
@@ -131,13 +129,12 @@ public class TACGenerator extends MiniJavaBaseVisitor<TACBlock> {
     public TACBlock visitStmtWhile(MiniJavaParser.StmtWhileContext ctx) {
         TACBlock result = new TACBlock();
         String labelStart = this.genlab();
-        TACBlock expr = this.visit(ctx.expression());
-        TACBlock body = this.visit(ctx.statement());
         String labelEnd = this.genlab();
+        TACBlock cond = this.condition(ctx.expression(), labelEnd, false);
+        TACBlock body = this.visit(ctx.statement());
         
         result.add(TACOp.label(labelStart));
-        result.addAll(expr);
-        result.add(TACOp.jz(expr.getResult(), labelEnd));
+        result.addAll(cond);
         result.addAll(body);
         result.add(TACOp.jmp(labelStart));
         result.add(TACOp.label(labelEnd));
@@ -166,14 +163,14 @@ public class TACGenerator extends MiniJavaBaseVisitor<TACBlock> {
         String id = ctx.identifier().getText();
         if (this.method.hasVar(id)) {
             // Variable is stored in vl register.
-            result.add(TACOp.mov("vl" + this.method.getVarIndex(id), expr.getResult()));
+            result.add(TACOp.mov(TACReg.vl(this.method.getVarIndex(id)), expr.getResult()));
         }
         else if (this.current.hasAnyVar(id)) {
             // Variable is stored in memory, indexed by this (vl0).
-            String dest = this.genreg();
-            String idx = this.genreg();
+            int dest = this.genreg();
+            int idx = this.genreg();
             result.add(TACOp.immed(idx, this.current.getVarIndex(id)));
-            result.add(TACOp.offset(dest, "vl0", idx));
+            result.add(TACOp.offset(dest, TACReg.VL0, idx));
             result.add(TACOp.store(dest, expr.getResult()));
         }
         else {
@@ -196,10 +193,15 @@ public class TACGenerator extends MiniJavaBaseVisitor<TACBlock> {
         result.addAll(index);
         result.addAll(expr);
 
+        // As in Java, the index is checked after the expression is evaluated.
+        if (this.checked) {
+            result.add(TACOp.check(base.getResult(), index.getResult()));
+        }
+
         // Calculate the address of the array element.
-        String one = this.genreg();
-        String int0 = this.genreg();
-        String dest = this.genreg();
+        int one = this.genreg();
+        int int0 = this.genreg();
+        int dest = this.genreg();
 
         result.add(TACOp.immed(one, 1));
         result.add(TACOp.offset(int0, base.getResult(), one));
@@ -222,7 +224,7 @@ public class TACGenerator extends MiniJavaBaseVisitor<TACBlock> {
         TACBlock result = new TACBlock();
         TACBlock expr = this.visit(ctx.expression());
 
-        String res = this.genreg();
+        int res = this.genreg();
 
         result.addAll(expr);
         result.add(TACOp.load(res, expr.getResult()));
@@ -239,7 +241,7 @@ public class TACGenerator extends MiniJavaBaseVisitor<TACBlock> {
         if (op.equals("&&")) {
             // && should short-circuit.
             String end = this.genlab();
-            String res = this.genreg();
+            int res = this.genreg();
 
             result.addAll(expr1);
             result.add(TACOp.mov(res, expr1.getResult()));
@@ -273,7 +275,7 @@ public class TACGenerator extends MiniJavaBaseVisitor<TACBlock> {
         TACBlock result = new TACBlock();
 
         // Evaluate call "receiver" and arguments.
-        ArrayList<String> results = new ArrayList<String>();
+        ArrayList<Integer> results = new ArrayList<Integer>();
         for (MiniJavaParser.ExpressionContext e : ctx.expression()) {
             TACBlock expr = this.visit(e);
             result.addAll(expr);
@@ -281,20 +283,30 @@ public class TACGenerator extends MiniJavaBaseVisitor<TACBlock> {
         }
 
         // Get a pointer to the method.
-        String vtbl = this.genreg();
-        String idx = this.genreg();
-        String method = this.genreg();
-        String dst = this.genreg();
-        String res = this.genreg();
+        int dst = this.genreg();
+        int res = this.genreg();
 
         Class receiver = this.sym.getStaticType(ctx).getObject();
         String methodName = ctx.identifier().getText();
-        int methodIdx = receiver.getAnyMethodIndex(methodName);
-        
-        result.add(TACOp.load(vtbl, results.get(0))); // vtbl = [obj]
-        result.add(TACOp.immed(idx, methodIdx));
-        result.add(TACOp.offset(method, vtbl, idx)); // method = [obj] + idx
-        result.add(TACOp.load(dst, method)); // dest = [[obj] + idx]
+        Method target = this.sym.getHierarchy().resolve(receiver, methodName);
+
+        if (target != null) {
+            // No subclass overrides the method, so call it directly.
+            // As with a call through the vtable, calling a method on null
+            // is undefined.
+            result.add(TACOp.addrof(dst, target.getQualifiedName())); // dest = Class.method
+        }
+        else {
+            int vtbl = this.genreg();
+            int idx = this.genreg();
+            int method = this.genreg();
+            int methodIdx = receiver.getAnyMethodIndex(methodName);
+
+            result.add(TACOp.load(vtbl, results.get(0))); // vtbl = [obj]
+            result.add(TACOp.immed(idx, methodIdx));
+            result.add(TACOp.offset(method, vtbl, idx)); // method = [obj] + idx
+            result.add(TACOp.load(dst, method)); // dest = [[obj] + idx]
+        }
 
         // Push the parameters, including implicit "this".
         for (int n = 0; n < results.size(); n++) {
@@ -303,7 +315,7 @@ public class TACGenerator extends MiniJavaBaseVisitor<TACBlock> {
 
         // Make the call and save the result.
         result.add(TACOp.call(dst));
-        result.add(TACOp.mov(res, "r0"));
+        result.add(TACOp.mov(res, TACReg.R0));
         
         return result;
     }
@@ -318,14 +330,17 @@ public class TACGenerator extends MiniJavaBaseVisitor<TACBlock> {
         TACBlock result = new TACBlock();
         TACBlock array = this.visit(ctx.expression(0));
         TACBlock index = this.visit(ctx.expression(1));
-        String one = this.genreg();
-        String int0 = this.genreg();
-        String src = this.genreg();
-        String res = this.genreg();
+        int one = this.genreg();
+        int int0 = this.genreg();
+        int src = this.genreg();
+        int res = this.genreg();
         
         result.addAll(array);
         result.addAll(index);
 
+        if (this.checked) {
+            result.add(TACOp.check(array.getResult(), index.getResult()));
+        }
         result.add(TACOp.immed(one, 1));
         result.add(TACOp.offset(int0, array.getResult(), one));
         result.add(TACOp.offset(src, int0, index.getResult()));
@@ -336,9 +351,9 @@ public class TACGenerator extends MiniJavaBaseVisitor<TACBlock> {
     
     public TACBlock visitExpNewObject(MiniJavaParser.ExpNewObjectContext ctx) {
         TACBlock result = new TACBlock();
-        String size = this.genreg();
-//        String vtbl = this.genreg();
-        String res = this.genreg();
+        int size = this.genreg();
+//        int vtbl = this.genreg();
+        int res = this.genreg();
         
         Class c = sym.get(ctx.identifier().getText());
 
@@ -348,7 +363,7 @@ public class TACGenerator extends MiniJavaBaseVisitor<TACBlock> {
         // Set the 1st word to be the vtable of the object's class.
 //        result.add(TACOp.addrof(vtbl, c.getName() + ".vtbl"));
 //        result.add(TACOp.store(res, vtbl));
-        result.add(TACOp.store(res, "vg" + c.getClassIndex()));
+        result.add(TACOp.store(res, TACReg.vg(c.getClassIndex())));
         
         return result;
     }
@@ -356,9 +371,9 @@ public class TACGenerator extends MiniJavaBaseVisitor<TACBlock> {
     public TACBlock visitExpNewArray(MiniJavaParser.ExpNewArrayContext ctx) {
         TACBlock result = new TACBlock();
         TACBlock expr = this.visit(ctx.expression());
-        String size = this.genreg();
-        String one = this.genreg();
-        String res = this.genreg();
+        int size = this.genreg();
+        int one = this.genreg();
+        int res = this.genreg();
         
         // Size of memory block to allocate is length of array + 1.
         result.addAll(expr);
@@ -376,7 +391,7 @@ public class TACGenerator extends MiniJavaBaseVisitor<TACBlock> {
         TACBlock expr = this.visit(ctx.expression());
         String labelFalse = this.genlab();
         String labelEnd = this.genlab();
-        String res = this.genreg();
+        int res = this.genreg();
         
         result.addAll(expr);
         result.add(TACOp.jz(expr.getResult(), labelFalse));
@@ -402,7 +417,58 @@ public class TACGenerator extends MiniJavaBaseVisitor<TACBlock> {
     public TACBlock visitExpThis(MiniJavaParser.ExpThisContext ctx) {
         // "this" is always in vl0, so no need to generate any code.
         TACBlock result = new TACBlock();
-        result.setResult("vl0");
+        result.setResult(TACReg.VL0);
+        return result;
+    }
+
+    // ------------------------------------------------------------------------
+    // Generate code for conditions:
+
+    // Generate code for a boolean expression that controls a jump: jump to a
+    // label if the value of the expression is jumpIf, and fall through if
+    // not. For &&, ! and constants, this jumps straight to where the value
+    // would lead, rather than working out the value and then testing it.
+    private TACBlock condition(MiniJavaParser.ExpressionContext ctx, String label, boolean jumpIf) {
+        TACBlock result = new TACBlock();
+
+        if (ctx instanceof MiniJavaParser.ExpGroupContext) {
+            return this.condition(((MiniJavaParser.ExpGroupContext) ctx).expression(), label, jumpIf);
+        }
+        if (ctx instanceof MiniJavaParser.ExpNotContext) {
+            return this.condition(((MiniJavaParser.ExpNotContext) ctx).expression(), label, !jumpIf);
+        }
+        if (ctx instanceof MiniJavaParser.ExpConstTrueContext || ctx instanceof MiniJavaParser.ExpConstFalseContext) {
+            if ((ctx instanceof MiniJavaParser.ExpConstTrueContext) == jumpIf) {
+                result.add(TACOp.jmp(label));
+            }
+            return result;
+        }
+        if (ctx instanceof MiniJavaParser.ExpBinOpContext && ctx.getChild(1).getText().equals("&&")) {
+            MiniJavaParser.ExpBinOpContext and = (MiniJavaParser.ExpBinOpContext) ctx;
+            if (!jumpIf) {
+                // Jump if either side is false.
+                result.addAll(this.condition(and.expression(0), label, false));
+                result.addAll(this.condition(and.expression(1), label, false));
+            }
+            else {
+                // Jump if both sides are true: skip the jump if the left is false.
+                String skip = this.genlab();
+                result.addAll(this.condition(and.expression(0), skip, false));
+                result.addAll(this.condition(and.expression(1), label, true));
+                result.add(TACOp.label(skip));
+            }
+            return result;
+        }
+
+        // Otherwise, work out the value and test it.
+        TACBlock expr = this.visit(ctx);
+        result.addAll(expr);
+        if (jumpIf) {
+            result.add(TACOp.jnz(expr.getResult(), label));
+        }
+        else {
+            result.add(TACOp.jz(expr.getResult(), label));
+        }
         return result;
     }
 
@@ -416,15 +482,15 @@ public class TACGenerator extends MiniJavaBaseVisitor<TACBlock> {
         if (this.method.hasVar(id)) {
             // Variable is stored in vl register.
             // No need to generate any code; just return the register.
-            result.setResult("vl" + this.method.getVarIndex(id));
+            result.setResult(TACReg.vl(this.method.getVarIndex(id)));
         }
         else if (this.current.hasAnyVar(id)) {
             // Variable is stored in memory, indexed by this (vl0).
-            String idx = this.genreg();
-            String field = this.genreg();
-            String res = this.genreg();
+            int idx = this.genreg();
+            int field = this.genreg();
+            int res = this.genreg();
             result.add(TACOp.immed(idx, this.current.getVarIndex(id)));
-            result.add(TACOp.offset(field, "vl0", idx));
+            result.add(TACOp.offset(field, TACReg.VL0, idx));
             result.add(TACOp.load(res, field));
         }
         else {
@@ -437,10 +503,10 @@ public class TACGenerator extends MiniJavaBaseVisitor<TACBlock> {
 
     // ------------------------------------------------------------------------
     
-    private String genreg() {
+    private int genreg() {
         int n = this.regs;
         this.regs++;
-        return "r" + n;
+        return TACReg.r(n);
     }
     
     private String genlab() {
@@ -453,15 +519,15 @@ public class TACGenerator extends MiniJavaBaseVisitor<TACBlock> {
         TACBlock result = new TACBlock();
         result.add(TACOp.label("INIT"));
 
-        String one = "r1";
+        int one = TACReg.r(1);
         result.add(TACOp.immed(one, 1));
         
         for (Class c : sym.values()) {
             int n = c.getClassIndex();
-            String base = "vg" + n;
-            String size = "r2";
-            String entry = "r3";
-            String method = "r4";
+            int base = TACReg.vg(n);
+            int size = TACReg.r(2);
+            int entry = TACReg.r(3);
+            int method = TACReg.r(4);
             result.add(TACOp.immed(size, c.allMethods().size()));
             result.add(TACOp.malloc(base, size));
             result.add(TACOp.mov(entry, base));
@@ -0,0 +1,272 @@
+package babycino;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Inlining of small methods.
+//
+// Unlike the optimisers run by PassManager, this works on the whole program
+// at once, as it copies code from one block into another. A call is inlined
+// if it is direct (see ClassHierarchy), so it can only reach one method, and
+// that method is small enough: the call is replaced by a copy of the
+// method's code. This saves pushing the parameters, the call itself and
+// copying the parameters into vl registers, and lets the optimisers work
+// on the method's code together with the caller's.
+//
+// The copy uses new r and vl registers in the caller, and its labels are
+// renamed to be unique. Parameters are moved into the vl registers the
+// method would have copied them to, and each return becomes a jump to the
+// end of the copy. The result is still left in r0.
+//
+// Only one level of calls is inlined, using the code of each method as it
+// was before any inlining, and a method is never inlined into itself.
+public class TACInliner {
+
+    // The largest method inlined, in operations (not counting its label
+    // and return).
+    public static final int CALLEE_LIMIT = 24;
+    // Stop inlining into a method once it is this many operations long.
+    public static final int CALLER_LIMIT = 2000;
+
+    private SymbolTable sym;
+    // The number of calls inlined.
+    private int inlined;
+
+    public TACInliner(SymbolTable sym) {
+        this.sym = sym;
+        this.inlined = 0;
+    }
+
+    // Return the number of calls inlined so far.
+    public int getInlined() {
+        return this.inlined;
+    }
+
+    // Inline calls in every block of a list, in place.
+    // Return the positions of the blocks that changed.
+    public List<Integer> inline(List<TACBlock> tac) {
+        // Find the methods small enough to inline, before changing any.
+        Map<String, TACBlock> callees = new HashMap<String, TACBlock>();
+        for (TACBlock block : tac) {
+            if (block.size() >= 2 && block.size() - 2 <= CALLEE_LIMIT
+                && block.get(0).getType() == TACOpType.LABEL && this.findMethod(block.get(0).getLabel()) != null) {
+                callees.put(block.get(0).getLabel(), block);
+            }
+        }
+
+        List<Integer> changed = new ArrayList<Integer>();
+        for (int n = 0; n < tac.size(); n++) {
+            TACBlock result = this.inline(tac.get(n), callees);
+            if (result != null) {
+                tac.set(n, result);
+                changed.add(n);
+            }
+        }
+        return changed;
+    }
+
+    // Return the method with a qualified name, or null if there is none.
+    private Method findMethod(String name) {
+        return findMethod(this.sym, name);
+    }
+
+    // Return the method with a qualified name in a symbol table, or null if
+    // there is none. TACTailCallOptimiser uses this too.
+    static Method findMethod(SymbolTable sym, String name) {
+        int dot = name.indexOf('.');
+        if (dot < 0 || !sym.containsKey(name.substring(0, dot))) {
+            return null;
+        }
+        return sym.get(name.substring(0, dot)).getOwnMethod(name.substring(dot + 1));
+    }
+
+    // Inline the calls in a block of code.
+    // Return a new block, or null if nothing was inlined.
+    private TACBlock inline(TACBlock code, Map<String, TACBlock> callees) {
+        if (code.isEmpty() || code.get(0).getType() != TACOpType.LABEL) {
+            return null;
+        }
+        String caller = code.get(0).getLabel();
+
+        // Find the calls to inline: the method each calls, and where its
+        // parameters start.
+        TACBlock[] callee = new TACBlock[code.size()];
+        int[] paramStart = new int[code.size()];
+        int[] defLoc = singleDefs(code);
+        boolean found = false;
+        int size = code.size();
+        for (int n = 0; n < code.size(); n++) {
+            if (code.get(n).getType() != TACOpType.CALL) {
+                continue;
+            }
+            String target = findTarget(code, defLoc, n);
+            if (target == null || target.equals(caller) || !callees.containsKey(target)) {
+                continue;
+            }
+            // The parameters must be pushed just before the call: "this",
+            // then one for each parameter of the method.
+            int params = this.findMethod(target).getParams().size() + 1;
+            int start = n;
+            while (start > 0 && code.get(start - 1).getType() == TACOpType.PARAM) {
+                start--;
+            }
+            if (n - start != params) {
+                continue;
+            }
+            size += callees.get(target).size();
+            if (size > CALLER_LIMIT) {
+                break;
+            }
+            callee[n] = callees.get(target);
+            paramStart[n] = start;
+            found = true;
+        }
+        if (!found) {
+            return null;
+        }
+
+        // Build the new code, with a copy of each method in place of the
+        // call to it.
+        TACBlock result = new TACBlock();
+        int maxR = code.getMaxR();
+        int maxVL = code.getMaxVL();
+        int site = 0;
+        for (int n = 0; n < code.size(); n++) {
+            TACOp op = code.get(n);
+            if (op.getType() == TACOpType.PARAM && this.isParam(code, callee, n)) {
+                // Moved into place when the call is reached.
+                continue;
+            }
+            if (callee[n] == null) {
+                result.add(op);
+                continue;
+            }
+
+            TACBlock body = callee[n];
+            int rBase = maxR;
+            int vlBase = maxVL + 1;
+            for (int p = paramStart[n]; p < n; p++) {
+                result.add(TACOp.mov(TACReg.vl(vlBase + p - paramStart[n]), code.get(p).getR1()));
+            }
+            String prefix = caller + "@i" + site++;
+            this.copy(result, body, rBase, vlBase, prefix);
+            maxR = rBase + Math.max(0, body.getMaxR());
+            maxVL = vlBase + Math.max(body.getMaxVL(), n - paramStart[n] - 1);
+            this.inlined++;
+        }
+        return result;
+    }
+
+    // Is location n one of the parameters of a call being inlined?
+    private boolean isParam(TACBlock code, TACBlock[] callee, int n) {
+        int call = n;
+        while (code.get(call).getType() == TACOpType.PARAM) {
+            call++;
+        }
+        return callee[call] != null;
+    }
+
+    // Return the label of the method the call at location n calls, if it is
+    // the address of a method, or null if that is not known. The address is
+    // found by going back through the basic block to where the register
+    // called was set, or to its only definition, if it has just one (as
+    // TACLoopInvariantOptimiser may move the address out of a loop).
+    static String findTarget(TACBlock code, int[] defLoc, int n) {
+        int r = code.get(n).getR1();
+        int m = n - 1;
+        // Copies of undefined registers could go round in a cycle, so give
+        // up after going to as many definitions as there are operations.
+        int jumps = 0;
+        while (m >= 0) {
+            TACOp op = code.get(m);
+            if (TACFlowGraph.endsBlock(op.getType()) || op.getType() == TACOpType.LABEL) {
+                if (r >= defLoc.length || defLoc[r] < 0 || ++jumps > code.size()) {
+                    return null;
+                }
+                m = defLoc[r];
+                continue;
+            }
+            if (op.def() != r) {
+                m--;
+                continue;
+            }
+            if (op.getType() == TACOpType.ADDROF) {
+                return op.getLabel();
+            }
+            if (op.getType() != TACOpType.MOV) {
+                return null;
+            }
+            // Follow a copy back to the register copied.
+            r = op.getR2();
+            m--;
+        }
+        return null;
+    }
+
+    // Return the location of the only definition of each register, or -1
+    // for registers defined more than once or not at all.
+    static int[] singleDefs(TACBlock code) {
+        int limit = 0;
+        for (TACOp op : code) {
+            limit = Math.max(limit, Math.max(op.getR1(), Math.max(op.getR2(), op.getR3())) + 1);
+        }
+        int[] defLoc = new int[limit];
+        int[] defCount = new int[limit];
+        for (int n = 0; n < code.size(); n++) {
+            int d = code.get(n).def();
+            if (d != TACReg.NONE) {
+                defCount[d]++;
+                defLoc[d] = n;
+            }
+        }
+        for (int r = 0; r < limit; r++) {
+            if (defCount[r] != 1) {
+                defLoc[r] = -1;
+            }
+        }
+        return defLoc;
+    }
+
+    // Add a copy of a method's code to a block, renaming its registers and
+    // labels. Its r registers (other than r0) are moved up by rBase, and its
+    // vl registers by vlBase. Its labels get a prefix, which is also the
+    // label at the end of the copy.
+    private void copy(TACBlock result, TACBlock body, int rBase, int vlBase, String prefix) {
+        boolean jumpsToEnd = false;
+        // Skip the method's label.
+        for (int n = 1; n < body.size(); n++) {
+            TACOp op = body.get(n);
+            TACOpType type = op.getType();
+            if (type == TACOpType.RET) {
+                if (n < body.size() - 1) {
+                    result.add(TACOp.jmp(prefix));
+                    jumpsToEnd = true;
+                }
+                continue;
+            }
+            String label = op.getLabel();
+            if (type == TACOpType.LABEL || TACOp.jumps(type)) {
+                label = prefix + "@" + label;
+            }
+            result.add(TACOp.make(type, rename(op.getR1(), rBase, vlBase), rename(op.getR2(), rBase, vlBase),
+                                  rename(op.getR3(), rBase, vlBase), label, op.getN()));
+        }
+        if (jumpsToEnd) {
+            result.add(TACOp.label(prefix));
+        }
+    }
+
+    // Rename a register of an inlined method.
+    private static int rename(int r, int rBase, int vlBase) {
+        if (TACReg.isR(r) && r != TACReg.R0) {
+            return TACReg.r(TACReg.index(r) + rBase);
+        }
+        if (TACReg.isVL(r)) {
+            return TACReg.vl(TACReg.index(r) + vlBase);
+        }
+        return r;
+    }
+
+}
@@ -0,0 +1,172 @@
+package babycino;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+// Jump threading.
+//
+// The code generated for nested ifs, whiles and && often jumps to a label
+// that is followed at once by another jump. Rather than go through each in
+// turn, a jump can go straight to where the chain ends:
+//
+//   * A jump to a label followed (after any other labels) by "jmp L" goes to
+//     L instead.
+//   * A jump to a label followed by a conditional jump on a register whose
+//     value is known where the first jump is made goes to wherever the
+//     conditional jump would. Whether a register is 0 is known along the
+//     jump of "if (x=0) jmp L" itself, and in code that can only be reached
+//     from one side of a conditional jump on x, until x is set again. For
+//     example, && generates "r = a; if (r=0) jmp L; r = b; L:", and if the
+//     result is then tested by "if (r=0) jmp Else", the first jump can go
+//     straight to Else.
+//
+// A conditional jump over an unconditional jump, "if (x=0) jmp L1; jmp L2;
+// L1:", is also turned into "if (x!=0) jmp L2; L1:" (and the other way
+// round).
+//
+// Labels no longer jumped to are left for TACDeadCodeOptimiser to remove.
+public class TACJumpThreadingOptimiser implements TACBlockOptimiser {
+
+    public TACJumpThreadingOptimiser() {
+
+    }
+
+    // Thread the jumps in a TACBlock.
+    public TACBlock optimise(TACBlock code) {
+        PackedTACBlock result = this.optimise(PackedTACBlock.pack(code));
+        if (result == null) {
+            return null;
+        }
+        return result.unpack();
+    }
+
+    // Thread the jumps in a PackedTACBlock, in place.
+    // Return the block, or null if nothing changed.
+    public PackedTACBlock optimise(PackedTACBlock code) {
+        boolean changed = false;
+        for (int n = code.next(-1); n < code.size(); n = code.next(n)) {
+            TACOpType type = code.getType(n);
+            if (!TACOp.jumps(type)) {
+                continue;
+            }
+            int label = this.thread(code, n);
+            if (label != code.getLabelId(n)) {
+                code.set(n, type, code.getR1(n), TACReg.NONE, TACReg.NONE, label, 0);
+                changed = true;
+            }
+            if (TACOp.isBranch(type)) {
+                changed = this.invert(code, n) || changed;
+            }
+        }
+        if (!changed) {
+            return null;
+        }
+        return code;
+    }
+
+    // Return the label the jump at location n can go to instead, or its own
+    // label if there is none better.
+    private int thread(PackedTACBlock code, int n) {
+        TACFlowGraph graph = TACFlowAnalysis.forCode(code).getGraph();
+        Map<Integer, Boolean> zero = this.known(code, graph, n);
+        int label = code.getLabelId(n);
+        // Jumps could go round in a cycle, so give up after going through as
+        // many as there are operations.
+        for (int steps = 0; steps < code.size(); steps++) {
+            // Find the first operation after the label (and any others).
+            int p = code.next(graph.labelLoc(label));
+            while (p < code.size() && code.getType(p) == TACOpType.LABEL) {
+                p = code.next(p);
+            }
+            if (p >= code.size()) {
+                return label;
+            }
+
+            TACOpType type = code.getType(p);
+            int next;
+            if (type == TACOpType.JMP) {
+                next = code.getLabelId(p);
+            }
+            else if (TACOp.isBranch(type) && zero.containsKey(code.getR1(p))) {
+                if (zero.get(code.getR1(p)) == (type == TACOpType.JZ)) {
+                    next = code.getLabelId(p);
+                }
+                else {
+                    // The jump is not taken, so carry on to the label after
+                    // it, if there is one.
+                    int q = code.next(p);
+                    if (q >= code.size() || code.getType(q) != TACOpType.LABEL) {
+                        return label;
+                    }
+                    next = code.getLabelId(q);
+                }
+            }
+            else {
+                return label;
+            }
+            if (next == label) {
+                return label;
+            }
+            label = next;
+        }
+        return code.getLabelId(n);
+    }
+
+    // Return what is known about registers being 0 where the jump at location
+    // n is taken: for each register known, whether it is 0.
+    private Map<Integer, Boolean> known(PackedTACBlock code, TACFlowGraph graph, int n) {
+        Map<Integer, Boolean> zero = new HashMap<Integer, Boolean>();
+        if (TACOp.isBranch(code.getType(n))) {
+            zero.put(code.getR1(n), code.getType(n) == TACOpType.JZ);
+        }
+
+        // Go back through the basic blocks that can only be reached from the
+        // one before, noting the registers set on the way.
+        BitSet set = new BitSet();
+        int b = graph.blockOf(n);
+        int from = n;
+        for (int steps = 0; steps < graph.size(); steps++) {
+            for (int m = code.prev(from); m >= graph.start(b); m = code.prev(m)) {
+                if (code.def(m) != TACReg.NONE) {
+                    set.set(code.def(m));
+                }
+            }
+            if (graph.predCount(b) != 1) {
+                break;
+            }
+            int p = graph.pred(b, 0);
+            int last = code.prev(graph.end(p));
+            if (last >= graph.start(p) && TACOp.isBranch(code.getType(last))) {
+                int taken = graph.blockOf(graph.labelLoc(code.getLabelId(last)));
+                int r = code.getR1(last);
+                if (taken != p + 1 && !set.get(r) && !zero.containsKey(r)) {
+                    zero.put(r, (b == taken) == (code.getType(last) == TACOpType.JZ));
+                }
+            }
+            b = p;
+            from = graph.end(p);
+        }
+        return zero;
+    }
+
+    // If the conditional jump at location n jumps over an unconditional jump,
+    // to a label straight after it, turn it into the opposite conditional
+    // jump to the unconditional jump's target. Return whether it did.
+    private boolean invert(PackedTACBlock code, int n) {
+        int jmp = code.next(n);
+        if (jmp >= code.size() || code.getType(jmp) != TACOpType.JMP) {
+            return false;
+        }
+        for (int m = code.next(jmp); m < code.size() && code.getType(m) == TACOpType.LABEL; m = code.next(m)) {
+            if (code.getLabelId(m) == code.getLabelId(n)) {
+                TACOpType type = (code.getType(n) == TACOpType.JZ) ? TACOpType.JNZ : TACOpType.JZ;
+                code.set(n, type, code.getR1(n), TACReg.NONE, TACReg.NONE, code.getLabelId(jmp), 0);
+                code.delete(jmp);
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,253 @@
+package babycino;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Loop-invariant code motion.
+//
+// An operation in a loop is invariant if it computes the same value on every
+// iteration: its operands are either not defined in the loop at all, or
+// defined only by other invariant operations. Such an operation can be moved
+// into a preheader, which runs once before the loop is entered, if:
+//
+//   * it is the only definition of its register in the loop,
+//   * its register is not live on entry to the loop header (so no use in
+//     the loop sees a value from before the loop or a previous iteration),
+//   * and either it runs before every exit from the loop, or its register is
+//     not live after the loop (so running it when the loop body would not
+//     have does not matter).
+//
+// Only operations that cannot fail or have side effects are moved: moves,
+// constants, label addresses and binary operations. A load is also moved if
+// nothing in the loop stores to memory, calls a method or checks an array
+// index, and it runs before every exit (so the loop would have done the load
+// anyway).
+//
+// The preheader is placed as described in TACLoops. Loops are optimised from
+// the inside out. If code is hoisted out of a loop, the loops around it are left alone
+// until the optimiser runs again, when the hoisted code is considered for
+// them too.
+public class TACLoopInvariantOptimiser implements TACBlockOptimiser {
+
+    public TACLoopInvariantOptimiser() {
+
+    }
+
+    // Move invariant code out of the loops in a TACBlock.
+    public TACBlock optimise(TACBlock code) {
+        PackedTACBlock result = this.optimise(PackedTACBlock.pack(code));
+        if (result == null) {
+            return null;
+        }
+        return result.unpack();
+    }
+
+    // Move invariant code out of the loops in a PackedTACBlock.
+    // Return a new block, or null if nothing was moved.
+    public PackedTACBlock optimise(PackedTACBlock code) {
+        TACFlowAnalysis flow = TACFlowAnalysis.forCode(code);
+        TACFlowGraph graph = flow.getGraph();
+        TACLoops loops = new TACLoops(new TACDominators(graph));
+
+        int maxReg = 0;
+        for (int n = code.next(-1); n < code.size(); n = code.next(n)) {
+            maxReg = Math.max(maxReg, Math.max(code.getR1(n), Math.max(code.getR2(n), code.getR3(n))));
+        }
+
+        // The operations hoisted out of each loop, by loop number.
+        BitSet hoisted = new BitSet(code.size());
+        Map<Integer, PackedTACBlock> preheaders = new HashMap<Integer, PackedTACBlock>();
+        // Work from the inside out: an inner loop's body is smaller than the
+        // loop around it.
+        Integer[] order = new Integer[loops.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> loops.body(a).cardinality() - loops.body(b).cardinality());
+        // The headers of the loops code has been hoisted out of.
+        BitSet changedHeaders = new BitSet(graph.size());
+        Loop loop = new Loop(code, flow, loops, maxReg);
+        for (int i : order) {
+            if (loops.body(i).intersects(changedHeaders)) {
+                continue;
+            }
+            List<Integer> ops = loop.hoist(i, hoisted);
+            if (!ops.isEmpty()) {
+                // Copy the operations in the order they must run.
+                PackedTACBlock preheader = new PackedTACBlock(ops.size());
+                for (int m : ops) {
+                    preheader.add(code.getType(m), code.getR1(m), code.getR2(m), code.getR3(m),
+                                  preheader.labelId(code.getLabel(m)), code.getN(m));
+                }
+                preheaders.put(i, preheader);
+                changedHeaders.set(loops.header(i));
+            }
+        }
+        if (preheaders.isEmpty()) {
+            return null;
+        }
+        return loops.addPreheaders(code, preheaders, hoisted);
+    }
+
+    // The analysis of one loop at a time, reusing the same arrays.
+    private static class Loop {
+        private PackedTACBlock code;
+        private TACFlowAnalysis flow;
+        private TACFlowGraph graph;
+        private TACLoops loops;
+
+        // The number of definitions of each register in the loop, and the
+        // location of the last one.
+        private int[] defCount;
+        private int[] defLoc;
+
+        Loop(PackedTACBlock code, TACFlowAnalysis flow, TACLoops loops, int maxReg) {
+            this.code = code;
+            this.flow = flow;
+            this.graph = flow.getGraph();
+            this.loops = loops;
+            this.defCount = new int[maxReg + 1];
+            this.defLoc = new int[maxReg + 1];
+        }
+
+        // Find the operations that can be hoisted out of loop i, mark them in
+        // hoisted, and return them in order.
+        List<Integer> hoist(int i, BitSet hoisted) {
+            List<Integer> result = new ArrayList<Integer>();
+            BitSet body = this.loops.body(i);
+            int header = this.loops.header(i);
+
+            if (this.loops.preheaderLoc(this.code, i) < 0) {
+                return result;
+            }
+
+            // Count the definitions in the loop, and look for anything a load
+            // cannot be moved before: memory writes, and bounds checks (as a
+            // load hoisted above a failing check could read outside the array).
+            boolean pinsLoads = false;
+            for (int b = body.nextSetBit(0); b >= 0; b = body.nextSetBit(b + 1)) {
+                for (int n = this.graph.start(b); n < this.graph.end(b); n++) {
+                    if (this.code.isDeleted(n)) {
+                        continue;
+                    }
+                    int d = this.code.def(n);
+                    if (d != TACReg.NONE) {
+                        this.defCount[d]++;
+                        this.defLoc[d] = n;
+                    }
+                    TACOpType type = this.code.getType(n);
+                    if (type == TACOpType.STORE || type == TACOpType.CALL || type == TACOpType.CHECK) {
+                        pinsLoads = true;
+                    }
+                }
+            }
+
+            // The registers live on leaving the loop.
+            BitSet liveAfter = new BitSet();
+            List<Integer> exits = new ArrayList<Integer>();
+            for (int b = body.nextSetBit(0); b >= 0; b = body.nextSetBit(b + 1)) {
+                if (!this.loops.isExit(i, b)) {
+                    continue;
+                }
+                exits.add(b);
+                for (int s = 0; s < this.graph.succCount(b); s++) {
+                    if (!body.get(this.graph.succ(b, s))) {
+                        liveAfter.or(this.flow.blockLiveIn(this.graph.succ(b, s)));
+                    }
+                }
+            }
+            BitSet liveIn = this.flow.blockLiveIn(header);
+
+            // Hoist operations until no more are found, as hoisting one may
+            // make others that use it invariant.
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                for (int b = body.nextSetBit(0); b >= 0; b = body.nextSetBit(b + 1)) {
+                    boolean beforeExits = this.dominatesAll(b, exits);
+                    for (int n = this.graph.start(b); n < this.graph.end(b); n++) {
+                        if (this.code.isDeleted(n) || hoisted.get(n)) {
+                            continue;
+                        }
+                        if (this.canHoist(n, hoisted, liveIn, liveAfter, beforeExits, pinsLoads)) {
+                            hoisted.set(n);
+                            result.add(n);
+                            changed = true;
+                        }
+                    }
+                }
+            }
+
+            // Clear the counts for the next loop.
+            for (int b = body.nextSetBit(0); b >= 0; b = body.nextSetBit(b + 1)) {
+                for (int n = this.graph.start(b); n < this.graph.end(b); n++) {
+                    int d = this.code.def(n);
+                    if (d != TACReg.NONE) {
+                        this.defCount[d] = 0;
+                    }
+                }
+            }
+            return result;
+        }
+
+        // Can operation n be hoisted, given the operations already hoisted?
+        private boolean canHoist(int n, BitSet hoisted, BitSet liveIn, BitSet liveAfter,
+                                 boolean beforeExits, boolean pinsLoads) {
+            TACOpType type = this.code.getType(n);
+            switch (type) {
+                case MOV:
+                case IMMED:
+                case ADDROF:
+                case BINOP:
+                    break;
+                case LOAD:
+                    if (pinsLoads || !beforeExits) {
+                        return false;
+                    }
+                    break;
+                default:
+                    return false;
+            }
+
+            int r = this.code.getR1(n);
+            if (r == TACReg.R0 || TACReg.isVG(r)) {
+                return false;
+            }
+            if (this.defCount[r] != 1 || liveIn.get(r)) {
+                return false;
+            }
+            if (!beforeExits && liveAfter.get(r)) {
+                return false;
+            }
+            if (TACOp.usesR2(type) && !this.invariant(this.code.getR2(n), hoisted)) {
+                return false;
+            }
+            if (TACOp.usesR3(type) && !this.invariant(this.code.getR3(n), hoisted)) {
+                return false;
+            }
+            return true;
+        }
+
+        // Does register r have the same value throughout the loop, once the
+        // operations in hoisted have been moved out?
+        private boolean invariant(int r, BitSet hoisted) {
+            return this.defCount[r] == 0 || (this.defCount[r] == 1 && hoisted.get(this.defLoc[r]));
+        }
+
+        // Does basic block b dominate every one of the exits?
+        private boolean dominatesAll(int b, List<Integer> exits) {
+            TACDominators dom = this.loops.getDominators();
+            for (int e : exits) {
+                if (!dom.dominates(b, e)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+}
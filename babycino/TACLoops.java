@@ -0,0 +1,242 @@
+package babycino;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+
+// The natural loops of a TACFlowGraph.
+//
+// An edge from basic block b to basic block h is a back edge if h dominates
+// b. The natural loop of the back edge is h (its header) together with every
+// basic block that can reach b without going through h. Loops with the same
+// header are merged, so each loop has a different header. Loops are either
+// nested or disjoint.
+//
+// Optimisations that move or add code outside a loop put it in a preheader,
+// which runs once before the loop is entered. The preheader is placed just
+// before the header's label. If any jumps from outside the loop go to the
+// header, the preheader is given a label of its own and they are redirected
+// to it.
+public class TACLoops {
+
+    // The dominators the loops were found with.
+    private TACDominators dom;
+    // The header and basic blocks of each loop, in order of header.
+    private List<Integer> headers;
+    private List<BitSet> bodies;
+
+    // Find the natural loops, given the dominators of the flow graph.
+    public TACLoops(TACDominators dom) {
+        this.dom = dom;
+        this.headers = new ArrayList<Integer>();
+        this.bodies = new ArrayList<BitSet>();
+
+        TACFlowGraph graph = dom.getGraph();
+        int size = graph.size();
+        int[] stack = new int[size];
+        for (int h = 0; h < size; h++) {
+            BitSet body = null;
+            for (int p = 0; p < graph.predCount(h); p++) {
+                int b = graph.pred(h, p);
+                if (!dom.dominates(h, b)) {
+                    continue;
+                }
+                // Walk backwards from b, stopping at h.
+                if (body == null) {
+                    body = new BitSet(size);
+                    body.set(h);
+                }
+                int depth = 0;
+                if (!body.get(b)) {
+                    body.set(b);
+                    stack[depth++] = b;
+                }
+                while (depth > 0) {
+                    int x = stack[--depth];
+                    for (int q = 0; q < graph.predCount(x); q++) {
+                        int y = graph.pred(x, q);
+                        if (!body.get(y) && graph.reachable(y)) {
+                            body.set(y);
+                            stack[depth++] = y;
+                        }
+                    }
+                }
+            }
+            if (body != null) {
+                this.headers.add(h);
+                this.bodies.add(body);
+            }
+        }
+    }
+
+    // Return the dominators the loops were found with.
+    public TACDominators getDominators() {
+        return this.dom;
+    }
+
+    // Return the number of loops.
+    public int size() {
+        return this.headers.size();
+    }
+
+    // Return the header of loop i.
+    public int header(int i) {
+        return this.headers.get(i);
+    }
+
+    // Return the basic blocks in loop i.
+    // The set is shared, so must not be modified.
+    public BitSet body(int i) {
+        return this.bodies.get(i);
+    }
+
+    // Is loop i innermost, with no other loops inside it?
+    public boolean isInnermost(int i) {
+        BitSet body = this.bodies.get(i);
+        for (int j = 0; j < this.headers.size(); j++) {
+            if (j != i && body.get(this.headers.get(j))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Is basic block b in the loop with header h?
+    public boolean inLoopWithHeader(int h, int b) {
+        int i = this.headers.indexOf(h);
+        return i >= 0 && this.bodies.get(i).get(b);
+    }
+
+    // Is basic block b an exit of loop i, with a successor outside it?
+    public boolean isExit(int i, int b) {
+        BitSet body = this.bodies.get(i);
+        TACFlowGraph graph = this.dom.getGraph();
+        if (!body.get(b)) {
+            return false;
+        }
+        for (int s = 0; s < graph.succCount(b); s++) {
+            if (!body.get(graph.succ(b, s))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // ------------------------------------------------------------------------
+    // Preheaders:
+
+    // Return the location of the label starting the header of loop i, in the
+    // code the loops were found in, which a preheader would go just before.
+    // Return -1 if there is no label, or if the code before it falls through
+    // from inside the loop, as a preheader there would run on every iteration.
+    public int preheaderLoc(PackedTACBlock code, int i) {
+        TACFlowGraph graph = this.dom.getGraph();
+        int header = this.headers.get(i);
+        int first = code.next(graph.start(header) - 1);
+        if (first >= graph.end(header) || code.getType(first) != TACOpType.LABEL) {
+            return -1;
+        }
+        int before = code.prev(first);
+        if (before >= 0 && this.bodies.get(i).get(graph.blockOf(before))) {
+            TACOpType type = code.getType(before);
+            if (type != TACOpType.JMP && type != TACOpType.RET) {
+                return -1;
+            }
+        }
+        return first;
+    }
+
+    // Return a copy of the code the loops were found in, with a preheader
+    // holding the operations given before each loop in preheaders (by loop
+    // number). Operations in skip (if not null) are left out.
+    public PackedTACBlock addPreheaders(PackedTACBlock code, Map<Integer, PackedTACBlock> preheaders,
+                                        BitSet skip) {
+        TACFlowGraph graph = this.dom.getGraph();
+        PackedTACBlock out = new PackedTACBlock(code.count() + 2 * preheaders.size());
+        // The preheader to put before each location, and for each label id,
+        // the preheader label that jumps from outside the loop should go to
+        // instead, if any.
+        PackedTACBlock[] before = new PackedTACBlock[code.size()];
+        int[] redirect = new int[code.labelCount()];
+        Arrays.fill(redirect, PackedTACBlock.NO_LABEL);
+        for (Map.Entry<Integer, PackedTACBlock> e : preheaders.entrySet()) {
+            int h = this.preheaderLoc(code, e.getKey());
+            before[h] = e.getValue();
+            if (this.jumpedToFromOutside(code, graph.blockOf(h))) {
+                redirect[code.getLabelId(h)] = out.labelId(this.newLabel(code, out, code.getLabel(h)));
+            }
+        }
+
+        for (int n = code.next(-1); n < code.size(); n = code.next(n)) {
+            if (before[n] != null) {
+                int label = redirect[code.getLabelId(n)];
+                if (label != PackedTACBlock.NO_LABEL) {
+                    out.add(TACOpType.LABEL, TACReg.NONE, TACReg.NONE, TACReg.NONE, label, 0);
+                }
+                copyAll(before[n], out);
+            }
+            if (skip != null && skip.get(n)) {
+                continue;
+            }
+            TACOpType type = code.getType(n);
+            int label = PackedTACBlock.NO_LABEL;
+            if (TACOp.jumps(type) && redirect[code.getLabelId(n)] != PackedTACBlock.NO_LABEL) {
+                // Redirect the jump unless it is in the loop it jumps to.
+                int target = graph.blockOf(graph.labelLoc(code.getLabelId(n)));
+                if (!this.inLoopWithHeader(target, graph.blockOf(n))) {
+                    label = redirect[code.getLabelId(n)];
+                }
+            }
+            copyOp(code, out, n, label);
+        }
+        out.setResult(code.getResult());
+        return out;
+    }
+
+    // Is there a jump to the label starting basic block h from outside the
+    // loop with header h?
+    private boolean jumpedToFromOutside(PackedTACBlock code, int h) {
+        TACFlowGraph graph = this.dom.getGraph();
+        for (int p = 0; p < graph.predCount(h); p++) {
+            int b = graph.pred(h, p);
+            if (this.inLoopWithHeader(h, b)) {
+                continue;
+            }
+            int last = code.prev(graph.end(b));
+            TACOpType type = code.getType(last);
+            if (TACOp.jumps(type) && graph.blockOf(graph.labelLoc(code.getLabelId(last))) == h) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Copy every operation of a block to the end of out.
+    private static void copyAll(PackedTACBlock ops, PackedTACBlock out) {
+        for (int m = ops.next(-1); m < ops.size(); m = ops.next(m)) {
+            copyOp(ops, out, m, PackedTACBlock.NO_LABEL);
+        }
+    }
+
+    // Copy operation n to the end of out, with a different label if given.
+    private static void copyOp(PackedTACBlock code, PackedTACBlock out, int n, int label) {
+        if (label == PackedTACBlock.NO_LABEL) {
+            label = out.labelId(code.getLabel(n));
+        }
+        out.add(code.getType(n), code.getR1(n), code.getR2(n), code.getR3(n), label, code.getN(n));
+    }
+
+    // Make a label for a preheader, that is not already used.
+    private String newLabel(PackedTACBlock code, PackedTACBlock out, String header) {
+        int i = 0;
+        String label = header + "@p" + i;
+        while (code.hasLabel(label) || out.hasLabel(label)) {
+            i++;
+            label = header + "@p" + i;
+        }
+        return label;
+    }
+
+}
@@ -7,8 +7,9 @@ public class TACOp {
 
     // The TACOpType determines the actual instruction.
     TACOpType type;
-    // Up to 3 register arguments.
-    String r1, r2, r3;
+    // Up to 3 register arguments, encoded as described in TACReg.
+    // Unused arguments are TACReg.NONE.
+    int r1, r2, r3;
     // A label argument.
     String label;
     // An immediate integer constant argument.
@@ -16,7 +17,7 @@ public class TACOp {
 
     // The constructor is private, so TACOps can only be created by the static
     // convenience factory methods.
-    private TACOp(TACOpType type, String r1, String r2, String r3, String label, int n) {
+    private TACOp(TACOpType type, int r1, int r2, int r3, String label, int n) {
         // Just save all the arguments in the fields.
         this.type = type;
         this.r1 = r1;
@@ -32,15 +33,15 @@ public class TACOp {
         return this.type;
     }
 
-    public String getR1() {
+    public int getR1() {
         return this.r1;
     }
     
-    public String getR2() {
+    public int getR2() {
         return this.r2;
     }
 
-    public String getR3() {
+    public int getR3() {
         return this.r3;
     }
     
@@ -52,30 +53,177 @@ public class TACOp {
         return this.n;
     }
 
+    // Return the registers used and defined by the operation.
+    // Each operation uses at most 2 registers and defines at most 1.
+
+    public int firstUse() {
+        return TACOp.firstUse(this.type, this.r1, this.r2);
+    }
+
+    public int secondUse() {
+        return TACOp.secondUse(this.type, this.r2, this.r3);
+    }
+
+    public int def() {
+        return TACOp.def(this.type, this.r1);
+    }
+
+    // Helpers for the above, which work on fields stored elsewhere too:
+
+    // Return the first register an operation uses, or TACReg.NONE if none.
+    static int firstUse(TACOpType type, int r1, int r2) {
+        switch (type) {
+            // Uses r1:
+            case PARAM:
+            case CALL:
+            case JZ:
+            case JNZ:
+            case WRITE:
+            case STORE:
+            case CHECK:
+                return r1;
+
+            // Uses r2:
+            case MOV:
+            case LOAD:
+            case MALLOC:
+            case BINOP:
+                return r2;
+
+            // A return implicitly uses r0.
+            case RET:
+                return TACReg.R0;
+
+            // Anything else uses nothing:
+            default:
+                return TACReg.NONE;
+        }
+    }
+
+    // Return the second register an operation uses, or TACReg.NONE if none.
+    static int secondUse(TACOpType type, int r2, int r3) {
+        switch (type) {
+            // Uses r1 and r2:
+            case STORE:
+            case CHECK:
+                return r2;
+
+            // Uses r2 and r3:
+            case BINOP:
+                return r3;
+
+            // Anything else uses at most one register:
+            default:
+                return TACReg.NONE;
+        }
+    }
+
+    // Return the register an operation defines, or TACReg.NONE if none.
+    static int def(TACOpType type, int r1) {
+        switch (type) {
+            // These operations define r1.
+            case MOV:
+            case IMMED:
+            case LOAD:
+            case BINOP:
+            case MALLOC:
+            case READ:
+            case ADDROF:
+                return r1;
+
+            // A call may put a result in r0.
+            case CALL:
+                return TACReg.R0;
+
+            // Everything else defines nothing.
+            default:
+                return TACReg.NONE;
+        }
+    }
+
+    // Which of the register fields of an operation of a given type are used,
+    // and which is defined? This is the same information as above, but by
+    // field rather than by register, for code that renames registers.
+    // The implicit uses and definitions of r0 are not included.
+
+    static boolean usesR1(TACOpType type) {
+        switch (type) {
+            case PARAM:
+            case CALL:
+            case JZ:
+            case JNZ:
+            case WRITE:
+            case STORE:
+            case CHECK:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    static boolean usesR2(TACOpType type) {
+        switch (type) {
+            case MOV:
+            case LOAD:
+            case STORE:
+            case MALLOC:
+            case BINOP:
+            case CHECK:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    static boolean usesR3(TACOpType type) {
+        return type == TACOpType.BINOP;
+    }
+
+    static boolean definesR1(TACOpType type) {
+        return type != TACOpType.CALL && def(type, TACReg.R0) != TACReg.NONE;
+    }
+
+    // Does an operation of a given type jump to its label, always or
+    // depending on a register?
+    static boolean jumps(TACOpType type) {
+        return type == TACOpType.JMP || isBranch(type);
+    }
+
+    static boolean isBranch(TACOpType type) {
+        return type == TACOpType.JZ || type == TACOpType.JNZ;
+    }
+
+    // Return a TACOp with arbitrary fields.
+    // This is only for code that stores the fields of TACOps elsewhere, such
+    // as PackedTACBlock. Everything else should use the methods below.
+    static TACOp make(TACOpType type, int r1, int r2, int r3, String label, int n) {
+        return new TACOp(type, r1, r2, r3, label, n);
+    }
+
     // Convenience static factory methods to return TACOps of a specific type:
     
-    public static TACOp mov(String r1, String r2) {
-        return new TACOp(TACOpType.MOV, r1, r2, null, null, 0);
+    public static TACOp mov(int r1, int r2) {
+        return new TACOp(TACOpType.MOV, r1, r2, TACReg.NONE, null, 0);
     }
 
-    public static TACOp immed(String r1, int n) {
-        return new TACOp(TACOpType.IMMED, r1, null, null, null, n);
+    public static TACOp immed(int r1, int n) {
+        return new TACOp(TACOpType.IMMED, r1, TACReg.NONE, TACReg.NONE, null, n);
     }
     
-    public static TACOp load(String r1, String r2) {
-        return new TACOp(TACOpType.LOAD, r1, r2, null, null, 0);
+    public static TACOp load(int r1, int r2) {
+        return new TACOp(TACOpType.LOAD, r1, r2, TACReg.NONE, null, 0);
     }
 
-    public static TACOp store(String r1, String r2) {
-        return new TACOp(TACOpType.STORE, r1, r2, null, null, 0);
+    public static TACOp store(int r1, int r2) {
+        return new TACOp(TACOpType.STORE, r1, r2, TACReg.NONE, null, 0);
     }
 
-    public static TACOp binop(String r1, String r2, String r3, int n) {
+    public static TACOp binop(int r1, int r2, int r3, int n) {
         return new TACOp(TACOpType.BINOP, r1, r2, r3, null, n);
     }
 
     // Include a convenience method for this binop, as size addition is so common.
-    public static TACOp add(String r1, String r2, String r3) {
+    public static TACOp add(int r1, int r2, int r3) {
         return TACOp.binop(r1, r2, r3, TACOp.binopToCode("+"));
     }
 
@@ -84,52 +232,61 @@ public class TACOp {
     // generated TAC for pointer arithmetic. The difference from "+" is that
     // r3 holds an offset in machine words, not bytes. So "offset 1" may mean
     // "+ 4" on 32-bit machines or "+ 8" on 64-bit machines, rather than "+ 1".
-    public static TACOp offset(String r1, String r2, String r3) {
+    public static TACOp offset(int r1, int r2, int r3) {
         return TACOp.binop(r1, r2, r3, TACOp.binopToCode("offset"));
     }
 
-    public static TACOp param(String r1) {
-        return new TACOp(TACOpType.PARAM, r1, null, null, null, 0);
+    public static TACOp param(int r1) {
+        return new TACOp(TACOpType.PARAM, r1, TACReg.NONE, TACReg.NONE, null, 0);
     }
 
-    public static TACOp call(String r1) {
-        return new TACOp(TACOpType.CALL, r1, null, null, null, 0);
+    public static TACOp call(int r1) {
+        return new TACOp(TACOpType.CALL, r1, TACReg.NONE, TACReg.NONE, null, 0);
     }
     
     public static TACOp ret() {
-        return new TACOp(TACOpType.RET, null, null, null, null, 0);
+        return new TACOp(TACOpType.RET, TACReg.NONE, TACReg.NONE, TACReg.NONE, null, 0);
     }
     
     public static TACOp label(String label) {
-        return new TACOp(TACOpType.LABEL, null, null, null, label, 0);
+        return new TACOp(TACOpType.LABEL, TACReg.NONE, TACReg.NONE, TACReg.NONE, label, 0);
     }
 
     public static TACOp jmp(String label) {
-        return new TACOp(TACOpType.JMP, null, null, null, label, 0);
+        return new TACOp(TACOpType.JMP, TACReg.NONE, TACReg.NONE, TACReg.NONE, label, 0);
+    }
+
+    public static TACOp jz(int r1, String label) {
+        return new TACOp(TACOpType.JZ, r1, TACReg.NONE, TACReg.NONE, label, 0);
+    }
+
+    public static TACOp jnz(int r1, String label) {
+        return new TACOp(TACOpType.JNZ, r1, TACReg.NONE, TACReg.NONE, label, 0);
     }
 
-    public static TACOp jz(String r1, String label) {
-        return new TACOp(TACOpType.JZ, r1, null, null, label, 0);
+    public static TACOp malloc(int r1, int r2) {
+        return new TACOp(TACOpType.MALLOC, r1, r2, TACReg.NONE, null, 0);
     }
 
-    public static TACOp malloc(String r1, String r2) {
-        return new TACOp(TACOpType.MALLOC, r1, r2, null, null, 0);
+    public static TACOp read(int r1) {
+        return new TACOp(TACOpType.READ, r1, TACReg.NONE, TACReg.NONE, null, 0);
     }
 
-    public static TACOp read(String r1) {
-        return new TACOp(TACOpType.READ, r1, null, null, null, 0);
+    public static TACOp write(int r1) {
+        return new TACOp(TACOpType.WRITE, r1, TACReg.NONE, TACReg.NONE, null, 0);
     }
 
-    public static TACOp write(String r1) {
-        return new TACOp(TACOpType.WRITE, r1, null, null, null, 0);
+    public static TACOp addrof(int r1, String label) {
+        return new TACOp(TACOpType.ADDROF, r1, TACReg.NONE, TACReg.NONE, label, 0);
     }
 
-    public static TACOp addrof(String r1, String label) {
-        return new TACOp(TACOpType.ADDROF, r1, null, null, label, 0);
+    // Check that r2 is a valid index into the array r1.
+    public static TACOp check(int r1, int r2) {
+        return new TACOp(TACOpType.CHECK, r1, r2, TACReg.NONE, null, 0);
     }
     
     public static TACOp nop() {
-        return new TACOp(TACOpType.NOP, null, null, null, null, 0);
+        return new TACOp(TACOpType.NOP, TACReg.NONE, TACReg.NONE, TACReg.NONE, null, 0);
     }
 
     // Convert between string representations of binary operations, as they
@@ -147,6 +304,8 @@ public class TACOp {
                 return 3;
             case "offset":
                 return 4;
+            case "<<":
+                return 5;
             default:
                 assert(false);
                 return -1;
@@ -165,6 +324,8 @@ public class TACOp {
                 return "*";
             case 4:
                 return "offset";
+            case 5:
+                return "<<";
             default:
                 assert(false);
                 return "";
@@ -173,21 +334,24 @@ public class TACOp {
 
     // Pretty-print TACOps.    
     public String toString() {
+        String r1 = TACReg.name(this.r1);
+        String r2 = TACReg.name(this.r2);
+        String r3 = TACReg.name(this.r3);
         switch (this.type) {
             case MOV:
-                return "    " + this.r1 + " = " + this.r2;
+                return "    " + r1 + " = " + r2;
             case IMMED:
-                return "    " + this.r1 + " = " + this.n;
+                return "    " + r1 + " = " + this.n;
             case LOAD:
-                return "    " + this.r1 + " = [" + this.r2 + "]";
+                return "    " + r1 + " = [" + r2 + "]";
             case STORE:
-                return "    " + "[" + this.r1 + "] = " + this.r2;
+                return "    " + "[" + r1 + "] = " + r2;
             case BINOP:
-                return "    " + this.r1 + " = " + this.r2 + " " + TACOp.codeToBinop(this.n) + " " + this.r3;
+                return "    " + r1 + " = " + r2 + " " + TACOp.codeToBinop(this.n) + " " + r3;
             case PARAM:
-                return "    " + "param " + this.r1;
+                return "    " + "param " + r1;
             case CALL:
-                return "    " + "call " + this.r1;
+                return "    " + "call " + r1;
             case RET:
                 return "    " + "return";
             case LABEL:
@@ -195,15 +359,19 @@ public class TACOp {
             case JMP:
                 return "    " + "jmp " + this.label;
             case JZ:
-                return "    " + "if (" + this.r1 + "=0) jmp " + this.label;
+                return "    " + "if (" + r1 + "=0) jmp " + this.label;
+            case JNZ:
+                return "    " + "if (" + r1 + "!=0) jmp " + this.label;
             case MALLOC:
-                return "    " + this.r1 + " = malloc " + this.r2;
+                return "    " + r1 + " = malloc " + r2;
             case READ:
-                return "    " + "read " + this.r1;
+                return "    " + "read " + r1;
             case WRITE:
-                return "    " + "write " + this.r1;
+                return "    " + "write " + r1;
             case ADDROF:
-                return "    " + this.r1 + " = " + this.label;
+                return "    " + r1 + " = " + this.label;
+            case CHECK:
+                return "    " + "check " + r1 + "[" + r2 + "]";
             case NOP:
                 return "    ";
             default:
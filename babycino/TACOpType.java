@@ -12,10 +12,12 @@ public enum TACOpType {
     LABEL,  // lab:                 - jump label
     JMP,    // jmp lab              - label jump
     JZ,     // if (r1=0) jmp lab    - label jump, conditional on reg
+    JNZ,    // if (r1!=0) jmp lab   - label jump, conditional on reg
     MALLOC, // r1 = malloc r2       - allocate memory: r2 units, pointer stored in r1
     READ,   // read r1              - read an integer from input into reg
     WRITE,  // write r1             - write an integer to output from reg
     ADDROF, // r1 = lab             - reg-const move of label value
+    CHECK,  // check r1[r2]         - abort unless 0 <= r2 < length of array r1
     NOP,    //                      - do nothing
     ;
 }
@@ -1,17 +1,25 @@
 package babycino;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 
 // To add a new peephole optimisation:
 //
 // 1. Write a class that implements Peephole.
 //   * The method optimise() gets called with n set to every index in a
-//   block in turn.
+//   block in turn. The block is a PackedTACBlock, so read and change the
+//   operations through its accessors and setters rather than making TACOps.
+//   It also gets the number of uses of each register in the block, which
+//   the optimiser keeps up to date as the code changes.
 //   * Your method should check if the code at n can be optimised. If it can be,
-//   your method should do so by updating the code block.
+//   your method should do so by updating the code block. It may look at and
+//   change up to WINDOW operations, starting at n. Use code.next() to find
+//   the following operations, as there may be deleted operations between
+//   them. Remove operations with code.delete(), not by moving the others.
 //   * Your method should return true if it changed the code and false if it
-//   did not. This lets the optimiser know whether it is worth trying more
-//   cycles of optimisation.
+//   did not. This lets the optimiser know which locations are worth trying
+//   again.
 //
 // 2. In the constructor for TACPeepholeOptimiser, add an instance of your new
 // class to the list.
@@ -19,16 +27,28 @@ import java.util.ArrayList;
 // Peephole optimiser.
 public class TACPeepholeOptimiser implements TACBlockOptimiser {
 
-    // Impose a limit on the number of cycles of optimisationn.
+    // Impose a limit on the number of optimisations made, as a multiple of
+    // the size of the block.
     // If the limit is reached, it probably means there is a bug in one of
     // the optimisers.
     private static final int LIMIT = 100;
 
+    // The most operations any Peephole looks at, starting from n.
+    private static final int WINDOW = 4;
+
+    // The codes for the binary operations.
+    private static final int LESS = TACOp.binopToCode("<");
+    private static final int PLUS = TACOp.binopToCode("+");
+    private static final int MINUS = TACOp.binopToCode("-");
+    private static final int TIMES = TACOp.binopToCode("*");
+    private static final int OFFSET = TACOp.binopToCode("offset");
+    private static final int SHIFT = TACOp.binopToCode("<<");
+
     // Interface for a single optimisation.
     private interface Peephole {
         // Optimise a block of code, looking at operation n.
         // Return whether the code was changed.
-        public boolean optimise(TACBlock code, int n);
+        public boolean optimise(PackedTACBlock code, UseCounts uses, int n);
     }
 
     // List of all optimisations to try.
@@ -38,48 +58,128 @@ public class TACPeepholeOptimiser implements TACBlockOptimiser {
         // Initialise the list of optimisations.
         this.optimisations = new ArrayList<Peephole>();
         this.optimisations.add(new ImmedBinop());
+        this.optimisations.add(new ImmedOperand());
+        this.optimisations.add(new SameOperands());
+        this.optimisations.add(new OffsetChain());
         this.optimisations.add(new ImmedMov());
         this.optimisations.add(new ImmedJz());
         this.optimisations.add(new JumpNext());
     }
 
     // Optimise a block of code by checking every location.
-    // Keep optimising until no more optimisations are applicable.
     // Return the modified block, or null if no changes were made.
     public TACBlock optimise(TACBlock code) {
-        // Track how many cycles of optimisation have been attempted.
-        int cycle = 0;
-        // Track whether any cycle has changed the code.
-        boolean changedEver = false;
-
-        // Keep optimising until nothing changes or the hard limit is reached.
-        while (cycle < LIMIT) {
-            // Track whether the current cycle has changed the code.
-            boolean changedRecently = false;
-            // Try every location in the code block.
-            for (int n = 0; n < code.size(); n++) {
-                // Try every enabled optimisation.
-                for (Peephole p : this.optimisations) {
-                    // Apply one optimisation.
-                    changedRecently = p.optimise(code, n) || changedRecently;
+        PackedTACBlock result = this.optimise(PackedTACBlock.pack(code));
+        if (result == null) {
+            return null;
+        }
+        return result.unpack();
+    }
+
+    // Optimise a packed block of code by checking every location.
+    // Keep optimising until no more optimisations are applicable.
+    // Return the modified block, or null if no changes were made.
+    //
+    // Rather than sweeping the whole block until nothing changes, keep a
+    // worklist of locations to try. Every location is tried once, and after
+    // a change, only the locations whose windows overlap the change are
+    // tried again. Deleted operations are left as tombstones in the block,
+    // so nothing moves, and are cleared out when the block is unpacked.
+    public PackedTACBlock optimise(PackedTACBlock code) {
+        // The worklist is a stack of locations, with a bitset to avoid
+        // queueing the same location twice.
+        int[] stack = new int[Math.max(code.size(), 16)];
+        int depth = 0;
+        BitSet queued = new BitSet(code.size());
+        // Push the locations in reverse, so they come off the stack in order.
+        for (int n = code.prev(code.size()); n >= 0; n = code.prev(n)) {
+            stack[depth++] = n;
+            queued.set(n);
+        }
+
+        // Count the uses of each register once, rather than searching the
+        // block whenever a peephole needs to know.
+        UseCounts uses = new UseCounts(code);
+        // The operations in the window starting at n, and their uses before
+        // each optimisation is tried.
+        int[] window = new int[WINDOW];
+        int[] firstUses = new int[WINDOW];
+        int[] secondUses = new int[WINDOW];
+
+        // Count the optimisations made, to stop if the limit is reached.
+        int changes = 0;
+        int limit = LIMIT * Math.max(code.size(), 1);
+
+        while (depth > 0 && changes < limit) {
+            int n = stack[--depth];
+            queued.clear(n);
+            if (code.isDeleted(n)) {
+                continue;
+            }
+
+            // Try every enabled optimisation.
+            boolean changed = false;
+            for (Peephole p : this.optimisations) {
+                // Apply one optimisation, unless an earlier one deleted n.
+                if (code.isDeleted(n)) {
+                    break;
+                }
+                int size = 0;
+                for (int m = n; m < code.size() && size < WINDOW; m = code.next(m)) {
+                    window[size] = m;
+                    firstUses[size] = code.firstUse(m);
+                    secondUses[size] = code.secondUse(m);
+                    size++;
+                }
+                if (!p.optimise(code, uses, n)) {
+                    continue;
+                }
+                changed = true;
+                // Only the window can have changed, so recount its uses.
+                for (int i = 0; i < size; i++) {
+                    uses.remove(firstUses[i]);
+                    uses.remove(secondUses[i]);
+                    if (!code.isDeleted(window[i])) {
+                        uses.add(code.firstUse(window[i]));
+                        uses.add(code.secondUse(window[i]));
+                    }
                 }
             }
-            // Update the record of whether the code has ever changed.
-            changedEver = changedEver || changedRecently;
-            // Break out if nothing changed this cycle.
-            if (!changedRecently) {
-                break;
+            if (!changed) {
+                continue;
+            }
+            changes++;
+
+            // The change was somewhere in the window starting at n, so try
+            // again every window that overlaps it. These start up to
+            // WINDOW-1 operations before n.
+            int first = n;
+            for (int i = 1; i < WINDOW && code.prev(first) >= 0; i++) {
+                first = code.prev(first);
+            }
+            int last = n;
+            for (int i = 1; i < WINDOW && code.next(last) < code.size(); i++) {
+                last = code.next(last);
+            }
+            for (int m = last; m >= first; m = code.prev(m)) {
+                if (queued.get(m) || code.isDeleted(m)) {
+                    continue;
+                }
+                if (depth == stack.length) {
+                    stack = Arrays.copyOf(stack, 2 * depth);
+                }
+                stack[depth++] = m;
+                queued.set(m);
             }
-            cycle++;
         }
 
-        // Give a warning if the cycle limit was reached.
-        if (cycle == LIMIT) {
+        // Give a warning if the limit was reached.
+        if (changes >= limit) {
             System.err.println("Warning: TAC peephole optimiser reached cycle limit");
         }
         // Return the code block passed in, but modified, if any optimisations
         // were made.
-        if (changedEver) {
+        if (changes > 0) {
             return code;
         }
         else {
@@ -88,7 +188,8 @@ public class TACPeepholeOptimiser implements TACBlockOptimiser {
     }
 
     // Helper function for precomputing the results of binary operations.
-    private static int precompute(int op, int arg1, int arg2) {
+    // Other optimisers that fold constants use this too.
+    static int precompute(int op, int arg1, int arg2) {
         switch (TACOp.codeToBinop(op)) {
             case "<":
                 return (arg1 < arg2) ? 1 : 0;
@@ -98,6 +199,8 @@ public class TACPeepholeOptimiser implements TACBlockOptimiser {
                 return arg1 - arg2;
             case "*":
                 return arg1 * arg2;
+            case "<<":
+                return arg1 << arg2;
             // We should never encounter "offset", as we don't know any memory
             // addresses at compile-time.
             case "offset":
@@ -109,37 +212,113 @@ public class TACPeepholeOptimiser implements TACBlockOptimiser {
         }
     }
 
+    // Helper function for simplifying a binary operation at n with one
+    // constant operand k: r2 if first is true, otherwise r3. Adding 0,
+    // subtracting 0, multiplying by 1 and shifting or offsetting by 0 become
+    // moves, and multiplying by 0 becomes 0. Return whether the operation
+    // changed. Other optimisers that know constants use this too.
+    static boolean simplify(PackedTACBlock code, int n, boolean first, int k) {
+        int op = code.getN(n);
+        int r1 = code.getR1(n);
+        int other = first ? code.getR3(n) : code.getR2(n);
+        if ((op == PLUS && k == 0) || (op == TIMES && k == 1)
+            || (!first && (op == MINUS || op == OFFSET || op == SHIFT) && k == 0)) {
+            code.set(n, TACOpType.MOV, r1, other, TACReg.NONE, PackedTACBlock.NO_LABEL, 0);
+            return true;
+        }
+        if (op == TIMES && k == 0) {
+            code.setImmed(n, r1, 0);
+            return true;
+        }
+        return false;
+    }
+
+    // Helper function for strength reduction: if k is a power of 2 above 1,
+    // so multiplying by k is the same as shifting left, return the number
+    // of places to shift. Otherwise return -1.
+    static int shiftFor(int k) {
+        if (k > 1 && (k & (k - 1)) == 0) {
+            return Integer.numberOfTrailingZeros(k);
+        }
+        return -1;
+    }
+
+    // Is register r used once in the code, at location m? Only r registers
+    // are counted on, as the others may be used by other blocks or by the
+    // caller.
+    private static boolean usedOnlyAt(PackedTACBlock code, UseCounts uses, int r, int m) {
+        return TACReg.isR(r) && r != TACReg.R0 && uses.get(r) == 1
+            && (code.firstUse(m) == r || code.secondUse(m) == r);
+    }
+
+    // The number of uses of each register in a block of code.
+    private static class UseCounts {
+        private int[] counts;
+
+        UseCounts(PackedTACBlock code) {
+            this.counts = new int[16];
+            for (int n = code.next(-1); n < code.size(); n = code.next(n)) {
+                this.add(code.firstUse(n));
+                this.add(code.secondUse(n));
+            }
+        }
+
+        // Return the number of uses of register r.
+        int get(int r) {
+            return (r < this.counts.length) ? this.counts[r] : 0;
+        }
+
+        // Count a use of register r (if it is one).
+        void add(int r) {
+            if (r == TACReg.NONE) {
+                return;
+            }
+            if (r >= this.counts.length) {
+                this.counts = Arrays.copyOf(this.counts, Math.max(2 * this.counts.length, r + 1));
+            }
+            this.counts[r]++;
+        }
+
+        // Stop counting a use of register r (if it is one).
+        void remove(int r) {
+            if (r != TACReg.NONE) {
+                this.counts[r]--;
+            }
+        }
+    }
+
     // If the arguments to a binary operation are constants set in the
     // preceding code, compute the result and set it immediately.
     private class ImmedBinop implements Peephole {
-        public boolean optimise(TACBlock code, int n) {
+        public boolean optimise(PackedTACBlock code, UseCounts uses, int n) {
             // Check there are 3 instructions.
-            if (n + 2 >= code.size()) {
+            // (Skip over any deleted instructions between them.)
+            int op1 = n;
+            int op2 = code.next(op1);
+            int op3 = (op2 < code.size()) ? code.next(op2) : op2;
+            if (op3 >= code.size()) {
                 return false;
             }
-            TACOp op1 = code.get(n);
-            TACOp op2 = code.get(n+1);
-            TACOp op3 = code.get(n+2);
 
             // Optimise: r1 = k1; r2 = k2; r3 = r1 op r2;
-            if ((op1.getType() == TACOpType.IMMED) &&
-                (op2.getType() == TACOpType.IMMED) &&
-                (op3.getType() == TACOpType.BINOP) &&
-                (op1.getR1().equals(op3.getR2())) &&
-                (op2.getR1().equals(op3.getR3())) &&
-                (op3.getN() != TACOp.binopToCode("offset"))) {
-                code.set(n+2, TACOp.immed(op3.getR1(), precompute(op3.getN(), op1.getN(), op2.getN())));
+            if ((code.getType(op1) == TACOpType.IMMED) &&
+                (code.getType(op2) == TACOpType.IMMED) &&
+                (code.getType(op3) == TACOpType.BINOP) &&
+                (code.getR1(op1) == code.getR2(op3)) &&
+                (code.getR1(op2) == code.getR3(op3)) &&
+                (code.getN(op3) != OFFSET)) {
+                code.setImmed(op3, code.getR1(op3), precompute(code.getN(op3), code.getN(op1), code.getN(op2)));
                 return true;
             }
             // Optimise: r2 = k2; r1 = k1; r3 = r1 op r2;
             else if
-               ((op1.getType() == TACOpType.IMMED) &&
-                (op2.getType() == TACOpType.IMMED) &&
-                (op3.getType() == TACOpType.BINOP) &&
-                (op2.getR1().equals(op3.getR2())) &&
-                (op1.getR1().equals(op3.getR3())) &&
-                (op3.getN() != TACOp.binopToCode("offset"))) {
-                code.set(n+2, TACOp.immed(op3.getR1(), precompute(op3.getN(), op2.getN(), op1.getN())));
+               ((code.getType(op1) == TACOpType.IMMED) &&
+                (code.getType(op2) == TACOpType.IMMED) &&
+                (code.getType(op3) == TACOpType.BINOP) &&
+                (code.getR1(op2) == code.getR2(op3)) &&
+                (code.getR1(op1) == code.getR3(op3)) &&
+                (code.getN(op3) != OFFSET)) {
+                code.setImmed(op3, code.getR1(op3), precompute(code.getN(op3), code.getN(op2), code.getN(op1)));
                 return true;
             }
             else {
@@ -148,22 +327,149 @@ public class TACPeepholeOptimiser implements TACBlockOptimiser {
         }
     }
 
+    // If a constant is loaded into a register and then used by a binary
+    // operation (straight away, or after an operation that doesn't change
+    // it), simplify the operation. Multiplying by a power of 2 becomes a
+    // shift, if nothing else uses the constant, so it can be changed to the
+    // number of places to shift.
+    private class ImmedOperand implements Peephole {
+        public boolean optimise(PackedTACBlock code, UseCounts uses, int n) {
+            if (code.getType(n) != TACOpType.IMMED) {
+                return false;
+            }
+            int rk = code.getR1(n);
+            int k = code.getN(n);
+
+            // Find the binary operation: r1 = k; [...;] r3 = r2 op r1;
+            int op = code.next(n);
+            if (op >= code.size()) {
+                return false;
+            }
+            if (code.getType(op) != TACOpType.BINOP || (code.getR2(op) != rk && code.getR3(op) != rk)) {
+                if (code.getType(op) == TACOpType.LABEL || code.def(op) == rk) {
+                    return false;
+                }
+                op = code.next(op);
+                if (op >= code.size() || code.getType(op) != TACOpType.BINOP
+                    || (code.getR2(op) != rk && code.getR3(op) != rk)) {
+                    return false;
+                }
+            }
+
+            // Optimise: r1 = k; r3 = r2 op r1; (or r3 = r1 op r2)
+            boolean first = (code.getR3(op) != rk);
+            if (simplify(code, op, first, k)) {
+                return true;
+            }
+            // Optimise: r1 = 2^j; r3 = r2 * r1; to r1 = j; r3 = r2 << r1;
+            int j = shiftFor(k);
+            if (code.getN(op) == TIMES && j >= 0 && code.getR2(op) != code.getR3(op)
+                && usedOnlyAt(code, uses, rk, op)) {
+                int other = first ? code.getR3(op) : code.getR2(op);
+                code.setImmed(n, rk, j);
+                code.set(op, TACOpType.BINOP, code.getR1(op), other, rk, PackedTACBlock.NO_LABEL, SHIFT);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    // A register subtracted from or compared with itself gives 0.
+    private class SameOperands implements Peephole {
+        public boolean optimise(PackedTACBlock code, UseCounts uses, int n) {
+            // Optimise: r1 = r2 - r2; (or r1 = r2 < r2)
+            if ((code.getType(n) == TACOpType.BINOP) &&
+                (code.getN(n) == MINUS || code.getN(n) == LESS) &&
+                (code.getR2(n) == code.getR3(n))) {
+                code.setImmed(n, code.getR1(n), 0);
+                return true;
+            }
+            else {
+                return false;
+            }
+        }
+    }
+
+    // Fold two offsets by constants into one, as in the address arithmetic
+    // for an array element with a constant index. The constant used by the
+    // second offset is changed to the sum, so nothing else may use it. If
+    // nothing else uses the first offset either, it and its constant are
+    // deleted.
+    private class OffsetChain implements Peephole {
+        public boolean optimise(PackedTACBlock code, UseCounts uses, int n) {
+            // Check there are 4 instructions.
+            int op1 = n;
+            int op2 = code.next(op1);
+            int op3 = (op2 < code.size()) ? code.next(op2) : op2;
+            int op4 = (op3 < code.size()) ? code.next(op3) : op3;
+            if (op4 >= code.size()) {
+                return false;
+            }
+            if (!((code.getType(op1) == TACOpType.IMMED) &&
+                  (code.getType(op2) == TACOpType.IMMED) &&
+                  (code.getType(op3) == TACOpType.BINOP) && (code.getN(op3) == OFFSET) &&
+                  (code.getType(op4) == TACOpType.BINOP) && (code.getN(op4) == OFFSET) &&
+                  (code.getR1(op1) != code.getR1(op2)))) {
+                return false;
+            }
+
+            // Optimise: rx = kx; ry = ky; a = b offset rx; c = a offset ry;
+            // (with the constants in either order)
+            // to: ry = kx + ky; c = b offset ry;
+            int a = code.getR1(op3);
+            int b = code.getR2(op3);
+            int rx = code.getR3(op3);
+            int ry = code.getR3(op4);
+            int kx;
+            int ky;
+            int immedX;
+            int immedY;
+            if (rx == code.getR1(op1) && ry == code.getR1(op2)) {
+                kx = code.getN(op1);
+                ky = code.getN(op2);
+                immedX = op1;
+                immedY = op2;
+            }
+            else if (rx == code.getR1(op2) && ry == code.getR1(op1)) {
+                kx = code.getN(op2);
+                ky = code.getN(op1);
+                immedX = op2;
+                immedY = op1;
+            }
+            else {
+                return false;
+            }
+            if (code.getR2(op4) != a || a == b || a == rx || a == ry || b == rx || b == ry
+                || !usedOnlyAt(code, uses, ry, op4)) {
+                return false;
+            }
+            boolean unused = usedOnlyAt(code, uses, a, op4) && usedOnlyAt(code, uses, rx, op3);
+            code.setImmed(immedY, ry, kx + ky);
+            code.set(op4, TACOpType.BINOP, code.getR1(op4), b, ry, PackedTACBlock.NO_LABEL, OFFSET);
+            if (unused) {
+                code.delete(op3);
+                code.delete(immedX);
+            }
+            return true;
+        }
+    }
+
     // If a constant is loaded into a register and then moved into another,
     // set it directly in the second register.
     private class ImmedMov implements Peephole {
-        public boolean optimise(TACBlock code, int n) {
+        public boolean optimise(PackedTACBlock code, UseCounts uses, int n) {
             // Check there are 2 instructions.
-            if (n + 1 >= code.size()) {
+            int op1 = n;
+            int op2 = code.next(op1);
+            if (op2 >= code.size()) {
                 return false;
             }
-            TACOp op1 = code.get(n);
-            TACOp op2 = code.get(n+1);
 
             // Optimise: r1 = k; r2 = r1;
-            if ((op1.getType() == TACOpType.IMMED) &&
-                (op2.getType() == TACOpType.MOV) &&
-                (op1.getR1().equals(op2.getR2()))) {
-                code.set(n+1, TACOp.immed(op2.getR1(), op1.getN()));
+            if ((code.getType(op1) == TACOpType.IMMED) &&
+                (code.getType(op2) == TACOpType.MOV) &&
+                (code.getR1(op1) == code.getR2(op2))) {
+                code.setImmed(op2, code.getR1(op2), code.getN(op1));
                 return true;
             }
             else {
@@ -172,52 +478,51 @@ public class TACPeepholeOptimiser implements TACBlockOptimiser {
         }
     }
 
-    // If a constant 0 is loaded into a register and then used for a
-    // conditional jump, turn it into an unconditional jump.
+    // If a constant 0 or 1 is loaded into a register and then used for a
+    // conditional jump, turn it into an unconditional jump or remove it.
     private class ImmedJz implements Peephole {
-        public boolean optimise(TACBlock code, int n) {
+        public boolean optimise(PackedTACBlock code, UseCounts uses, int n) {
             // Check there are 2 instructions.
-            if (n + 1 >= code.size()) {
+            int op1 = n;
+            int op2 = code.next(op1);
+            if (op2 >= code.size()) {
                 return false;
             }
-            TACOp op1 = code.get(n);
-            TACOp op2 = code.get(n+1);
             
             // Check the instructions hae form: mov r1, k; if (r1 = 0) jmp lab;
-            if (!((op1.getType() == TACOpType.IMMED) && (op2.getType() == TACOpType.JZ) && (op1.getR1().equals(op2.getR1())))) {
+            // (or if (r1 != 0) jmp lab;)
+            if (!((code.getType(op1) == TACOpType.IMMED) && TACOp.isBranch(code.getType(op2)) && (code.getR1(op1) == code.getR1(op2)))) {
                 return false;
             }
-            // Optimise: mov r1, 0; if (r1 = 0) jmp lab;
-            if (op1.getN() == 0) {
-                code.set(n+1, TACOp.jmp(op2.getLabel()));
-                return true;
-            }
-            // if r1 = 0, remove n+1 instruction;
-            if (op1.getN() == 1) {
-            	code.remove(n+1);
-            	return true;
-            }
-            else {
+            if (code.getN(op1) != 0 && code.getN(op1) != 1) {
                 return false;
             }
+            // Optimise: mov r1, 0; if (r1 = 0) jmp lab; (or mov r1, 1; if (r1 != 0) jmp lab;)
+            if ((code.getN(op1) == 0) == (code.getType(op2) == TACOpType.JZ)) {
+                code.setJmp(op2, code.getLabelId(op2));
+                return true;
+            }
+            // Otherwise the jump is never taken, so remove it.
+            code.delete(op2);
+            return true;
         }
     }
 
     // If the target of a jump is a label immediately afterwards, remove the jump.
     private class JumpNext implements Peephole {
-        public boolean optimise(TACBlock code, int n) {
+        public boolean optimise(PackedTACBlock code, UseCounts uses, int n) {
             // Check there are 2 instructions.
-            if (n + 1 >= code.size()) {
+            int op1 = n;
+            int op2 = code.next(op1);
+            if (op2 >= code.size()) {
                 return false;
             }
-            TACOp op1 = code.get(n);
-            TACOp op2 = code.get(n+1);
 
             // Optimise: jmp lab; lab: ;
-            if (((op1.getType() == TACOpType.JMP) || (op1.getType() == TACOpType.JZ)) &&
-                (op2.getType() == TACOpType.LABEL) &&
-                (op1.getLabel().equals(op2.getLabel()))) {
-                code.set(n, TACOp.nop());
+            if (TACOp.jumps(code.getType(op1)) &&
+                (code.getType(op2) == TACOpType.LABEL) &&
+                (code.getLabelId(op1) == code.getLabelId(op2))) {
+                code.setNop(op1);
                 return true;
             }
             else {
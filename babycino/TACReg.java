@@ -0,0 +1,84 @@
+package babycino;
+
+// Registers in Three Address Code are encoded as ints.
+//
+// The low 2 bits give the kind of register (r, vl or vg) and the remaining
+// bits give its number, so r12 is encoded as (12 << 2) | R. The value 0 is
+// not a register, and is used where a TACOp has no register argument.
+//
+// This avoids building, comparing and parsing strings such as "r12" in the
+// compiler. Encoded registers are small, non-negative and dense, so they can
+// also be used directly as bit numbers in a BitSet. Names are only produced
+// when TAC is printed.
+public final class TACReg {
+    // No register.
+    public static final int NONE = 0;
+
+    // The kinds of register:
+    // r0, r1, ... - temporaries (and r0 for method results)
+    public static final int R = 1;
+    // vl0, vl1, ... - method local variables
+    public static final int VL = 2;
+    // vg0, vg1, ... - global registers
+    public static final int VG = 3;
+
+    // Registers with special meanings in the generated code.
+    public static final int R0 = r(0);
+    public static final int VL0 = vl(0);
+
+    // There are no TACReg objects, just static helper methods.
+    private TACReg() {
+    }
+
+    // Encode registers of each kind from their numbers:
+
+    public static int r(int n) {
+        return (n << 2) | R;
+    }
+
+    public static int vl(int n) {
+        return (n << 2) | VL;
+    }
+
+    public static int vg(int n) {
+        return (n << 2) | VG;
+    }
+
+    // Decode registers:
+
+    // Return the kind of a register (R, VL or VG), or NONE.
+    public static int kind(int reg) {
+        return reg & 3;
+    }
+
+    // Return the number of a register within its kind.
+    public static int index(int reg) {
+        return reg >>> 2;
+    }
+
+    public static boolean isR(int reg) {
+        return kind(reg) == R;
+    }
+
+    public static boolean isVL(int reg) {
+        return kind(reg) == VL;
+    }
+
+    public static boolean isVG(int reg) {
+        return kind(reg) == VG;
+    }
+
+    // Return the printable name of a register, or null for NONE.
+    public static String name(int reg) {
+        switch (kind(reg)) {
+            case R:
+                return "r" + index(reg);
+            case VL:
+                return "vl" + index(reg);
+            case VG:
+                return "vg" + index(reg);
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package babycino;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+// Linear scan register allocation.
+//
+// The code generator and optimisers use as many r registers as they like.
+// This maps them onto a fixed number of registers, r1 to rN, as a machine
+// would have, keeping r0 for results. Each register is given a live
+// interval: the span of the linearised code from where it is first live to
+// where it is last live. Intervals that do not overlap can share a register.
+// The intervals are taken in order of where they start. When one starts and
+// every register is in use, whichever of it and the intervals holding the
+// registers ends last is spilled.
+//
+// A spilled register is replaced by a vl register, a slot in the method's
+// frame. Spills are given slots by a second scan of the same kind, so
+// spills that are not live at the same time share a slot.
+//
+// Intervals are found from liveness, so a register live anywhere in a basic
+// block is live throughout it, and an interval has no holes: a register
+// live around a loop is live across the whole loop. Within an operation,
+// the operands are read before the result is written, so an interval ending
+// at an operation's use can share a register with one starting at its
+// definition. To allow for this, each operation has two positions: the
+// first for its uses, and the second for its definition.
+//
+// Unlike the optimisers, this keeps a count of the registers spilled, so the
+// same allocator must not be used by several threads at once.
+public class TACRegisterAllocator {
+
+    // The number of registers available if not given.
+    public static final int DEFAULT_REGISTERS = 16;
+
+    // The number of registers available, not counting r0.
+    private int registers;
+    // The number of registers spilled so far.
+    private int spilled;
+
+    public TACRegisterAllocator(int registers) {
+        this.registers = registers;
+        this.spilled = 0;
+    }
+
+    // Return the number of registers spilled so far.
+    public int getSpilled() {
+        return this.spilled;
+    }
+
+    // Allocate registers in a block of code.
+    // Return a new block, or null if no registers needed renaming.
+    public TACBlock allocate(TACBlock block) {
+        int maxR = block.getMaxR();
+        if (maxR <= 0) {
+            return null;
+        }
+        PackedTACBlock code = PackedTACBlock.pack(block);
+        TACFlowAnalysis flow = new TACFlowAnalysis(code);
+        TACFlowGraph graph = flow.getGraph();
+
+        // Find the live interval of each r register, by index.
+        int[] start = new int[maxR + 1];
+        int[] end = new int[maxR + 1];
+        Arrays.fill(start, Integer.MAX_VALUE);
+        Arrays.fill(end, -1);
+        for (int b = 0; b < graph.size(); b++) {
+            if (graph.start(b) >= graph.end(b)) {
+                continue;
+            }
+            BitSet in = flow.blockLiveIn(b);
+            for (int r = in.nextSetBit(0); r >= 0; r = in.nextSetBit(r + 1)) {
+                extend(start, end, r, 2 * graph.start(b));
+            }
+            BitSet out = flow.blockLiveOut(b);
+            for (int r = out.nextSetBit(0); r >= 0; r = out.nextSetBit(r + 1)) {
+                extend(start, end, r, 2 * graph.end(b) - 1);
+            }
+            for (int n = graph.start(b); n < graph.end(b); n++) {
+                extend(start, end, code.firstUse(n), 2 * n);
+                extend(start, end, code.secondUse(n), 2 * n);
+                extend(start, end, code.def(n), 2 * n + 1);
+            }
+        }
+        List<Integer> order = new ArrayList<Integer>();
+        for (int i = 1; i <= maxR; i++) {
+            if (end[i] >= 0) {
+                order.add(i);
+            }
+        }
+        order.sort((a, b) -> start[a] - start[b]);
+
+        // Give each register a new one, then give each spill a slot.
+        int[] map = new int[maxR + 1];
+        List<Integer> spills = scan(order, start, end, map, this.registers);
+        for (int i : order) {
+            map[i] = TACReg.r(map[i]);
+        }
+        int[] slots = new int[maxR + 1];
+        scan(spills, start, end, slots, Integer.MAX_VALUE);
+        int vlBase = Math.max(0, block.getMaxVL() + 1);
+        for (int i : spills) {
+            map[i] = TACReg.vl(vlBase + slots[i] - 1);
+        }
+        this.spilled += spills.size();
+
+        boolean changed = false;
+        for (int i : order) {
+            changed = changed || map[i] != TACReg.r(i);
+        }
+        if (!changed) {
+            return null;
+        }
+        TACBlock result = new TACBlock();
+        for (TACOp op : block) {
+            result.add(TACOp.make(op.getType(), rename(map, op.getR1()), rename(map, op.getR2()),
+                                  rename(map, op.getR3()), op.getLabel(), op.getN()));
+        }
+        return result;
+    }
+
+    // Extend the live interval of register r (if it is one being allocated)
+    // to cover a position.
+    private static void extend(int[] start, int[] end, int r, int pos) {
+        if (!TACReg.isR(r) || r == TACReg.R0) {
+            return;
+        }
+        int i = TACReg.index(r);
+        start[i] = Math.min(start[i], pos);
+        end[i] = Math.max(end[i], pos);
+    }
+
+    // Assign the intervals given, in order of their starts, numbers from 1 to
+    // limit, so that intervals with the same number do not overlap. Record
+    // the number of each in map, and return the intervals that could not be
+    // given one.
+    private static List<Integer> scan(List<Integer> order, int[] start, int[] end, int[] map, int limit) {
+        List<Integer> spills = new ArrayList<Integer>();
+        // The intervals holding numbers, and the numbers free.
+        List<Integer> active = new ArrayList<Integer>();
+        BitSet free = new BitSet();
+        int used = 0;
+        for (int i : order) {
+            // Free the numbers of intervals that have ended.
+            for (int a = active.size() - 1; a >= 0; a--) {
+                if (end[active.get(a)] < start[i]) {
+                    free.set(map[active.get(a)]);
+                    active.remove(a);
+                }
+            }
+            if (!free.isEmpty()) {
+                map[i] = free.nextSetBit(0);
+                free.clear(map[i]);
+            }
+            else if (used < limit) {
+                map[i] = ++used;
+            }
+            else {
+                // Spill whichever interval ends last.
+                int last = i;
+                for (int a : active) {
+                    if (end[a] > end[last]) {
+                        last = a;
+                    }
+                }
+                spills.add(last);
+                if (last == i) {
+                    continue;
+                }
+                map[i] = map[last];
+                active.remove(Integer.valueOf(last));
+            }
+            active.add(i);
+        }
+        spills.sort((a, b) -> start[a] - start[b]);
+        return spills;
+    }
+
+    // Return the new name of a register.
+    private static int rename(int[] map, int r) {
+        if (!TACReg.isR(r) || r == TACReg.R0) {
+            return r;
+        }
+        return map[TACReg.index(r)];
+    }
+
+}
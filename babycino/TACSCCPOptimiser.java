@@ -0,0 +1,534 @@
+package babycino;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+// Sparse conditional constant propagation (SCCP).
+//
+// This finds registers that always hold the same constant, across the whole
+// block rather than just in neighbouring operations, and at the same time
+// finds the jumps that are never taken. It works on SSA form (see TACSSA),
+// following Wegman and Zadeck, "Constant Propagation with Conditional
+// Branches".
+//
+// Each register starts as "unknown" (no value seen yet) and can only move
+// down to a constant and then to "varying". Control flow edges start as not
+// executable. Starting from the first basic block, operations are evaluated
+// only once their basic block is known to be executable, and conditional
+// jumps only make the edges executable that their condition allows. A phi
+// function only takes values from executable edges. Two worklists, of edges
+// and of registers whose values changed, are processed until both are empty.
+//
+// Afterwards, MOVs and BINOPs whose results are constant become IMMEDs, and
+// conditional jumps on constants become unconditional jumps or are removed.
+// The code that can then never execute is left for TACDeadCodeOptimiser.
+// BINOPs with one constant operand are simplified as in TACPeepholeOptimiser,
+// which only sees constants set just before they are used. Where a constant
+// is used only once, it can also be changed: multiplying by a power of 2
+// becomes a shift, and two offsets by constants become one.
+public class TACSCCPOptimiser implements TACBlockOptimiser {
+
+    // The codes for the binary operations.
+    private static final int TIMES = TACOp.binopToCode("*");
+    private static final int OFFSET = TACOp.binopToCode("offset");
+    private static final int SHIFT = TACOp.binopToCode("<<");
+
+    public TACSCCPOptimiser() {
+
+    }
+
+    // Propagate constants through a TACBlock.
+    public TACBlock optimise(TACBlock code) {
+        PackedTACBlock result = this.optimise(PackedTACBlock.pack(code));
+        if (result == null) {
+            return null;
+        }
+        return result.unpack();
+    }
+
+    // Propagate constants through a PackedTACBlock.
+    // Return the optimised block, or null if nothing was found to fold.
+    public PackedTACBlock optimise(PackedTACBlock code) {
+        TACSSA ssa = new TACSSA(code);
+        // The optimiser may be shared between threads, so keep the state of
+        // each run separate.
+        Propagation p = new Propagation(ssa);
+        p.solve();
+        if (!p.rewrite()) {
+            return null;
+        }
+        return ssa.toCode();
+    }
+
+    // The state of one run of the propagation.
+    private static class Propagation {
+
+        // Lattice values.
+        private static final byte UNKNOWN = 0;
+        private static final byte CONSTANT = 1;
+        private static final byte VARYING = 2;
+
+        private TACSSA ssa;
+        private PackedTACBlock code;
+        private TACFlowGraph graph;
+
+        // The lattice value of each register, and its constant if it has one.
+        private byte[] kind;
+        private int[] value;
+
+        // All the phi functions, and the basic block each is in. They are in
+        // order of basic block, with those of b from phiStart[b] onwards.
+        private List<TACSSA.Phi> phis;
+        private int[] phiBlock;
+        private int[] phiStart;
+        // The uses of each register: uses[useStart[r]] up to
+        // uses[useStart[r+1]-1]. A use by an operation is its location, and a
+        // use by a phi function is ~ its index in phis.
+        private int[] useStart;
+        private int[] uses;
+
+        // The executable edges, as 2*b + i for the i-th successor of b.
+        private BitSet edges;
+        // The basic blocks with at least one executable edge in.
+        private BitSet visited;
+
+        // The worklists of edges, and of registers whose value changed.
+        private int[] edgeWork;
+        private int edgeCount;
+        private int[] regWork;
+        private int regCount;
+
+        // The location of the operation defining each renamed register, found
+        // when first needed.
+        private int[] defLoc;
+
+        Propagation(TACSSA ssa) {
+            this.ssa = ssa;
+            this.code = ssa.getCode();
+            this.graph = ssa.getGraph();
+            int limit = ssa.regLimit();
+
+            // Registers defined by SSA start unknown. Anything else (global
+            // variables, r0, incoming values) could hold anything.
+            this.kind = new byte[limit];
+            this.value = new int[limit];
+            Arrays.fill(this.kind, VARYING);
+            this.phis = new ArrayList<TACSSA.Phi>();
+            this.phiStart = new int[this.graph.size() + 1];
+            for (int b = 0; b < this.graph.size(); b++) {
+                this.phiStart[b] = this.phis.size();
+                for (TACSSA.Phi phi : ssa.getPhis(b)) {
+                    this.phis.add(phi);
+                    this.kind[phi.getDef()] = UNKNOWN;
+                }
+            }
+            this.phiStart[this.graph.size()] = this.phis.size();
+            this.phiBlock = new int[this.phis.size()];
+            for (int b = 0; b < this.graph.size(); b++) {
+                Arrays.fill(this.phiBlock, this.phiStart[b], this.phiStart[b + 1], b);
+            }
+            for (int n = this.code.next(-1); n < this.code.size(); n = this.code.next(n)) {
+                int d = this.code.getR1(n);
+                if (TACOp.definesR1(this.code.getType(n)) && TACSSA.isRenamed(d)) {
+                    this.kind[d] = UNKNOWN;
+                }
+            }
+
+            this.buildUses(limit);
+            this.edges = new BitSet(2 * this.graph.size());
+            this.visited = new BitSet(this.graph.size());
+            this.edgeWork = new int[16];
+            this.regWork = new int[16];
+        }
+
+        // Build the table of uses of each register.
+        private void buildUses(int limit) {
+            this.useStart = new int[limit + 1];
+            for (int pass = 0; pass < 2; pass++) {
+                int[] fill = (pass == 0) ? null : Arrays.copyOf(this.useStart, limit);
+                for (int n = this.code.next(-1); n < this.code.size(); n = this.code.next(n)) {
+                    TACOpType type = this.code.getType(n);
+                    if (TACOp.usesR1(type)) {
+                        this.addUse(fill, this.code.getR1(n), n);
+                    }
+                    if (TACOp.usesR2(type)) {
+                        this.addUse(fill, this.code.getR2(n), n);
+                    }
+                    if (TACOp.usesR3(type)) {
+                        this.addUse(fill, this.code.getR3(n), n);
+                    }
+                }
+                for (int i = 0; i < this.phis.size(); i++) {
+                    TACSSA.Phi phi = this.phis.get(i);
+                    for (int j = 0; j < phi.getArgCount(); j++) {
+                        this.addUse(fill, phi.getArg(j), ~i);
+                    }
+                }
+                if (pass == 0) {
+                    // Turn the counts into starting positions.
+                    for (int r = limit; r > 0; r--) {
+                        this.useStart[r] = this.useStart[r - 1];
+                    }
+                    this.useStart[0] = 0;
+                    for (int r = 0; r < limit; r++) {
+                        this.useStart[r + 1] += this.useStart[r];
+                    }
+                    this.uses = new int[this.useStart[limit]];
+                }
+            }
+        }
+
+        // Count a use (on the first pass, when fill is null) or record it.
+        private void addUse(int[] fill, int r, int use) {
+            if (fill == null) {
+                this.useStart[r]++;
+            }
+            else {
+                this.uses[fill[r]++] = use;
+            }
+        }
+
+        // --------------------------------------------------------------------
+        // Solving:
+
+        // Run the propagation until nothing changes.
+        void solve() {
+            if (this.graph.size() == 0) {
+                return;
+            }
+            this.enter(0);
+            while (this.edgeCount > 0 || this.regCount > 0) {
+                if (this.edgeCount > 0) {
+                    int e = this.edgeWork[--this.edgeCount];
+                    int b = this.graph.succ(e / 2, e % 2);
+                    // A new way in, so the phi functions may take new values.
+                    for (int i = this.phiStart[b]; i < this.phiStart[b + 1]; i++) {
+                        this.evalPhi(i);
+                    }
+                    if (!this.visited.get(b)) {
+                        this.enter(b);
+                    }
+                }
+                else {
+                    int r = this.regWork[--this.regCount];
+                    for (int i = this.useStart[r]; i < this.useStart[r + 1]; i++) {
+                        int use = this.uses[i];
+                        if (use < 0) {
+                            if (this.visited.get(this.phiBlock[~use])) {
+                                this.evalPhi(~use);
+                            }
+                        }
+                        else if (this.visited.get(this.graph.blockOf(use))) {
+                            this.evalOp(use);
+                        }
+                    }
+                }
+            }
+        }
+
+        // Visit basic block b for the first time, evaluating all its
+        // operations.
+        private void enter(int b) {
+            this.visited.set(b);
+            int last = -1;
+            for (int n = this.graph.start(b); n < this.graph.end(b); n++) {
+                if (!this.code.isDeleted(n)) {
+                    this.evalOp(n);
+                    last = n;
+                }
+            }
+            // Anything but a jump falls through (or returns).
+            TACOpType type = (last < 0) ? TACOpType.NOP : this.code.getType(last);
+            if (!TACOp.jumps(type)) {
+                for (int i = 0; i < this.graph.succCount(b); i++) {
+                    this.addEdge(b, i);
+                }
+            }
+        }
+
+        // Evaluate operation n, lowering the value of what it defines, or
+        // making the edges it jumps along executable.
+        private void evalOp(int n) {
+            TACOpType type = this.code.getType(n);
+            int b = this.graph.blockOf(n);
+            switch (type) {
+                case JMP:
+                    this.addEdgeTo(b, this.jumpTarget(n));
+                    return;
+                case JZ:
+                case JNZ: {
+                    int cond = this.code.getR1(n);
+                    if (this.kind[cond] == UNKNOWN) {
+                        return;
+                    }
+                    boolean taken = (this.value[cond] == 0) == (type == TACOpType.JZ);
+                    if (this.kind[cond] == VARYING || taken) {
+                        this.addEdgeTo(b, this.jumpTarget(n));
+                    }
+                    if (this.kind[cond] == VARYING || !taken) {
+                        if (b + 1 < this.graph.size()) {
+                            this.addEdgeTo(b, b + 1);
+                        }
+                    }
+                    return;
+                }
+                default:
+                    break;
+            }
+
+            int d = this.code.getR1(n);
+            if (!TACOp.definesR1(type) || !TACSSA.isRenamed(d)) {
+                return;
+            }
+            switch (type) {
+                case IMMED:
+                    this.lower(d, CONSTANT, this.code.getN(n));
+                    break;
+                case MOV:
+                case BINOP:
+                    this.lower(d, this.evalKind(n), this.evalValue);
+                    break;
+                default:
+                    this.lower(d, VARYING, 0);
+                    break;
+            }
+        }
+
+        // The constant found by the last call to evalKind(), if any.
+        private int evalValue;
+
+        // Work out the lattice value of the result of a MOV or BINOP at n.
+        // If it is constant, the constant is left in evalValue.
+        private byte evalKind(int n) {
+            int r2 = this.code.getR2(n);
+            if (this.code.getType(n) == TACOpType.MOV) {
+                this.evalValue = this.value[r2];
+                return this.kind[r2];
+            }
+            // Memory addresses are never known.
+            if (this.code.getN(n) == OFFSET) {
+                return VARYING;
+            }
+            int r3 = this.code.getR3(n);
+            if (this.kind[r2] == VARYING || this.kind[r3] == VARYING) {
+                return VARYING;
+            }
+            if (this.kind[r2] == UNKNOWN || this.kind[r3] == UNKNOWN) {
+                return UNKNOWN;
+            }
+            this.evalValue = TACPeepholeOptimiser.precompute(this.code.getN(n), this.value[r2], this.value[r3]);
+            return CONSTANT;
+        }
+
+        // Evaluate the i-th phi function: the meet of the values coming in
+        // along executable edges.
+        private void evalPhi(int i) {
+            TACSSA.Phi phi = this.phis.get(i);
+            int b = this.phiBlock[i];
+            byte k = UNKNOWN;
+            int v = 0;
+            for (int j = 0; j < phi.getArgCount() && k != VARYING; j++) {
+                int p = this.graph.pred(b, j);
+                if (!this.edges.get(2 * p + this.succIndex(p, b))) {
+                    continue;
+                }
+                int arg = phi.getArg(j);
+                if (this.kind[arg] == UNKNOWN) {
+                    continue;
+                }
+                if (this.kind[arg] == VARYING || (k == CONSTANT && this.value[arg] != v)) {
+                    k = VARYING;
+                }
+                else {
+                    k = CONSTANT;
+                    v = this.value[arg];
+                }
+            }
+            this.lower(phi.getDef(), k, v);
+        }
+
+        // Lower the value of register r, if the new value is lower.
+        private void lower(int r, byte k, int v) {
+            if (k <= this.kind[r]) {
+                return;
+            }
+            this.kind[r] = k;
+            this.value[r] = v;
+            if (this.regCount == this.regWork.length) {
+                this.regWork = Arrays.copyOf(this.regWork, this.regCount * 2);
+            }
+            this.regWork[this.regCount++] = r;
+        }
+
+        // Make the edge from basic block b to basic block s executable.
+        private void addEdgeTo(int b, int s) {
+            this.addEdge(b, this.succIndex(b, s));
+        }
+
+        // Make the i-th edge out of basic block b executable.
+        private void addEdge(int b, int i) {
+            int e = 2 * b + i;
+            if (i < 0 || this.edges.get(e)) {
+                return;
+            }
+            this.edges.set(e);
+            if (this.edgeCount == this.edgeWork.length) {
+                this.edgeWork = Arrays.copyOf(this.edgeWork, this.edgeCount * 2);
+            }
+            this.edgeWork[this.edgeCount++] = e;
+        }
+
+        // Return the index of s among the successors of b, or -1.
+        private int succIndex(int b, int s) {
+            for (int i = 0; i < this.graph.succCount(b); i++) {
+                if (this.graph.succ(b, i) == s) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        // Return the basic block that the jump at location n goes to.
+        private int jumpTarget(int n) {
+            return this.graph.blockOf(this.graph.labelLoc(this.code.getLabelId(n)));
+        }
+
+        // --------------------------------------------------------------------
+        // Rewriting:
+
+        // Rewrite the code with the constants found. Return whether anything
+        // changed.
+        boolean rewrite() {
+            boolean changed = false;
+            for (int n = this.code.next(-1); n < this.code.size(); n = this.code.next(n)) {
+                if (!this.visited.get(this.graph.blockOf(n))) {
+                    continue;
+                }
+                TACOpType type = this.code.getType(n);
+                if (type == TACOpType.MOV || type == TACOpType.BINOP) {
+                    // Fold the result, even if it goes to a register that was
+                    // not renamed (such as r0).
+                    if (this.evalKind(n) == CONSTANT) {
+                        this.code.setImmed(n, this.code.getR1(n), this.evalValue);
+                        changed = true;
+                    }
+                    else if (type == TACOpType.BINOP) {
+                        changed = this.simplify(n) || changed;
+                    }
+                }
+                else if (TACOp.isBranch(type)) {
+                    int cond = this.code.getR1(n);
+                    if (this.kind[cond] != CONSTANT) {
+                        continue;
+                    }
+                    if ((this.value[cond] == 0) == (type == TACOpType.JZ)) {
+                        this.code.setJmp(n, this.code.getLabelId(n));
+                    }
+                    else {
+                        this.code.delete(n);
+                    }
+                    changed = true;
+                }
+            }
+            // Constants are only changed once every operation that folds to
+            // a constant has become an IMMED.
+            for (int n = this.code.next(-1); n < this.code.size(); n = this.code.next(n)) {
+                if (this.visited.get(this.graph.blockOf(n)) && this.code.getType(n) == TACOpType.BINOP) {
+                    changed = this.reduce(n) || changed;
+                }
+            }
+            return changed;
+        }
+
+        // Simplify the BINOP at n if one of its operands is constant.
+        private boolean simplify(int n) {
+            int r2 = this.code.getR2(n);
+            int r3 = this.code.getR3(n);
+            if (this.kind[r3] == CONSTANT) {
+                return TACPeepholeOptimiser.simplify(this.code, n, false, this.value[r3]);
+            }
+            if (this.kind[r2] == CONSTANT) {
+                return TACPeepholeOptimiser.simplify(this.code, n, true, this.value[r2]);
+            }
+            return false;
+        }
+
+        // Reduce the BINOP at n, by changing a constant only it uses:
+        // r1 = 2^j; r3 = r2 * r1;                to r1 = j; r3 = r2 << r1;
+        // rx = kx; a = b offset rx; c = a offset ry; ry = ky;
+        //                                        to ry = kx + ky; c = b offset ry;
+        // Return whether it changed.
+        private boolean reduce(int n) {
+            int op = this.code.getN(n);
+            int r2 = this.code.getR2(n);
+            int r3 = this.code.getR3(n);
+            if (op == TIMES) {
+                for (int i = 0; i < 2; i++) {
+                    int rk = (i == 0) ? r3 : r2;
+                    int other = (i == 0) ? r2 : r3;
+                    int def = this.constantUsedOnce(rk);
+                    int j = (def < 0) ? -1 : TACPeepholeOptimiser.shiftFor(this.value[rk]);
+                    if (j >= 0) {
+                        this.change(def, rk, j);
+                        this.code.set(n, TACOpType.BINOP, this.code.getR1(n), other, rk, PackedTACBlock.NO_LABEL, SHIFT);
+                        return true;
+                    }
+                }
+            }
+            else if (op == OFFSET) {
+                int ry = r3;
+                int immedY = this.constantUsedOnce(ry);
+                int defA = this.defOf(r2);
+                if (immedY < 0 || defA < 0 || this.code.getType(defA) != TACOpType.BINOP
+                    || this.code.getN(defA) != OFFSET) {
+                    return false;
+                }
+                // b must still hold the same value, which it does in SSA form.
+                int b = this.code.getR2(defA);
+                int rx = this.code.getR3(defA);
+                if (!TACSSA.isRenamed(b) || this.kind[rx] != CONSTANT) {
+                    return false;
+                }
+                this.change(immedY, ry, this.value[rx] + this.value[ry]);
+                this.code.set(n, TACOpType.BINOP, this.code.getR1(n), b, ry, PackedTACBlock.NO_LABEL, OFFSET);
+                return true;
+            }
+            return false;
+        }
+
+        // If register r is constant, is set by an IMMED and has exactly one
+        // use, return the location of the IMMED. Otherwise return -1.
+        private int constantUsedOnce(int r) {
+            if (this.kind[r] != CONSTANT || this.useStart[r + 1] - this.useStart[r] != 1) {
+                return -1;
+            }
+            int def = this.defOf(r);
+            return (def >= 0 && this.code.getType(def) == TACOpType.IMMED) ? def : -1;
+        }
+
+        // Return the location of the operation defining register r, or -1 if
+        // it is not renamed or is defined by a phi function.
+        private int defOf(int r) {
+            if (this.defLoc == null) {
+                this.defLoc = new int[this.kind.length];
+                Arrays.fill(this.defLoc, -1);
+                for (int n = this.code.next(-1); n < this.code.size(); n = this.code.next(n)) {
+                    int d = this.code.getR1(n);
+                    if (TACOp.definesR1(this.code.getType(n)) && TACSSA.isRenamed(d)) {
+                        this.defLoc[d] = n;
+                    }
+                }
+            }
+            return TACSSA.isRenamed(r) ? this.defLoc[r] : -1;
+        }
+
+        // Change the constant set by the IMMED at n into register r.
+        private void change(int n, int r, int k) {
+            this.code.setImmed(n, r, k);
+            this.value[r] = k;
+        }
+    }
+
+}
@@ -0,0 +1,731 @@
+package babycino;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+// Static single assignment (SSA) form of a block of Three Address Code.
+//
+// In SSA form, every register is defined by exactly one operation, so each
+// use of a register has exactly one definition, which dominates it. Where
+// different definitions of a register in the original code meet, a "phi
+// function" at the start of the basic block chooses between them, depending
+// on which predecessor control came from.
+//
+// The temporaries (except r0, which calls and returns use implicitly) and
+// the local variables are renamed; global variables are left as they are.
+// Each definition gets a new r register. A use that is not reached by any
+// definition keeps the original name, which is how parameters and "this"
+// (the incoming values of local variables) are read.
+//
+// Phi functions are not operations: they are kept alongside the code, in a
+// list for each basic block. The code itself keeps the same operations in
+// the same locations, so optimisations on SSA form can change or delete
+// operations through the PackedTACBlock as usual, but must not add any.
+// Edges in the flow graph may be removed (by changing or deleting jumps),
+// but not added.
+//
+// The construction follows Cytron et al., "Efficiently Computing Static
+// Single Assignment Form and the Control Dependence Graph", with phi
+// functions only placed where the register is live ("pruned" SSA).
+//
+// toCode() translates back out of SSA form, replacing each phi function with
+// copies on the incoming edges, and then merging ("coalescing") registers
+// joined by copies wherever their values never need to be held at the same
+// time. Most copies disappear this way, including many in the original code.
+public class TACSSA {
+
+    // A phi function at the start of a basic block: def = phi(args...).
+    public static class Phi {
+        // The register defined.
+        int def;
+        // The register in the original code whose definitions it merges.
+        int var;
+        // The value from each predecessor of the basic block, in the order of
+        // TACFlowGraph.pred().
+        int[] args;
+
+        Phi(int var, int preds) {
+            this.def = TACReg.NONE;
+            this.var = var;
+            this.args = new int[preds];
+        }
+
+        public int getDef() {
+            return this.def;
+        }
+
+        public int getVar() {
+            return this.var;
+        }
+
+        public int getArgCount() {
+            return this.args.length;
+        }
+
+        public int getArg(int i) {
+            return this.args[i];
+        }
+
+        public void setArg(int i, int reg) {
+            this.args[i] = reg;
+        }
+
+        public String toString() {
+            StringBuilder s = new StringBuilder("    " + TACReg.name(this.def) + " = phi(");
+            for (int i = 0; i < this.args.length; i++) {
+                s.append((i == 0) ? "" : ", ").append(TACReg.name(this.args[i]));
+            }
+            return s.append(")").toString();
+        }
+    }
+
+    // The code in SSA form.
+    private PackedTACBlock code;
+    // The flow graph of the code, and its dominators.
+    private TACFlowGraph graph;
+    private TACDominators dom;
+    // The phi functions at the start of each basic block.
+    private List<List<Phi>> phis;
+    // The r registers numbered from firstNew up were made for SSA form.
+    // The next one to make is nextNew.
+    private int firstNew;
+    private int nextNew;
+    // The highest register number of any kind in the original code.
+    private int maxIndex;
+
+    // Build the SSA form of a block of code. The block itself is not changed.
+    public TACSSA(PackedTACBlock original) {
+        // Work on a copy, without any unreachable code. As unreachable code
+        // is never executed, it does not need translating.
+        this.code = original.copy();
+        {
+            TACFlowGraph all = new TACFlowGraph(this.code);
+            BitSet keep = new BitSet(this.code.size());
+            for (int b = 0; b < all.size(); b++) {
+                if (all.reachable(b)) {
+                    keep.set(all.start(b), all.end(b));
+                }
+            }
+            this.code.retain(keep);
+        }
+
+        TACFlowAnalysis flow = new TACFlowAnalysis(this.code);
+        this.graph = flow.getGraph();
+        this.dom = new TACDominators(this.graph);
+        this.phis = new ArrayList<List<Phi>>();
+        for (int b = 0; b < this.graph.size(); b++) {
+            this.phis.add(new ArrayList<Phi>());
+        }
+
+        int maxR = 0;
+        int maxReg = 0;
+        for (int n = 0; n < this.code.size(); n++) {
+            for (int r : new int[] { this.code.getR1(n), this.code.getR2(n), this.code.getR3(n) }) {
+                if (TACReg.isR(r)) {
+                    maxR = Math.max(maxR, TACReg.index(r));
+                }
+                maxReg = Math.max(maxReg, r);
+                this.maxIndex = Math.max(this.maxIndex, TACReg.index(r));
+            }
+        }
+        this.firstNew = maxR + 1;
+        this.nextNew = this.firstNew;
+
+        this.placePhis(flow, maxReg);
+        this.rename(maxReg);
+    }
+
+    // Should register r be renamed in SSA form? If so, it has at most one
+    // definition, either by an operation or by a phi function.
+    public static boolean isRenamed(int r) {
+        return (TACReg.isR(r) && r != TACReg.R0) || TACReg.isVL(r);
+    }
+
+    // Make a new r register.
+    public int newReg() {
+        return TACReg.r(this.nextNew++);
+    }
+
+    // Return a number greater than every register in the code so far, so
+    // that registers can be used to index arrays.
+    public int regLimit() {
+        return Math.max(TACReg.r(this.nextNew), TACReg.vg(this.maxIndex + 1));
+    }
+
+    // ------------------------------------------------------------------------
+    // Construction:
+
+    // Place phi functions in every basic block where different definitions
+    // of a register meet and the register is live.
+    private void placePhis(TACFlowAnalysis flow, int maxReg) {
+        int blocks = this.graph.size();
+
+        // Find the basic blocks that define each register. A basic block
+        // is only listed once for each register, at its first definition.
+        int[] defStart = new int[maxReg + 2];
+        int[] lastBlock = new int[maxReg + 1];
+        Arrays.fill(lastBlock, -1);
+        for (int n = 0; n < this.code.size(); n++) {
+            int d = this.code.def(n);
+            int b = this.graph.blockOf(n);
+            if (isRenamed(d) && lastBlock[d] != b) {
+                lastBlock[d] = b;
+                defStart[d + 1]++;
+            }
+        }
+        for (int r = 0; r <= maxReg; r++) {
+            defStart[r + 1] += defStart[r];
+        }
+        int[] defBlocks = new int[defStart[maxReg + 1]];
+        int[] fill = Arrays.copyOf(defStart, maxReg + 1);
+        Arrays.fill(lastBlock, -1);
+        for (int n = 0; n < this.code.size(); n++) {
+            int d = this.code.def(n);
+            int b = this.graph.blockOf(n);
+            if (isRenamed(d) && lastBlock[d] != b) {
+                lastBlock[d] = b;
+                defBlocks[fill[d]++] = b;
+            }
+        }
+
+        // For each register, spread phi functions out along the dominance
+        // frontiers of the blocks that define it. A phi function is itself
+        // a definition, so its block's frontier is visited too.
+        // Rather than clearing the per-block markers for each register, they
+        // record the last register the block was marked for.
+        int[] hasPhi = new int[blocks];
+        int[] queued = new int[blocks];
+        Arrays.fill(hasPhi, TACReg.NONE);
+        Arrays.fill(queued, TACReg.NONE);
+        int[] work = new int[blocks];
+        for (int r = 0; r <= maxReg; r++) {
+            if (defStart[r] == defStart[r + 1]) {
+                continue;
+            }
+            int count = 0;
+            for (int i = defStart[r]; i < defStart[r + 1]; i++) {
+                queued[defBlocks[i]] = r;
+                work[count++] = defBlocks[i];
+            }
+            while (count > 0) {
+                int x = work[--count];
+                for (int i = 0; i < this.dom.frontierCount(x); i++) {
+                    int y = this.dom.frontier(x, i);
+                    if (hasPhi[y] == r) {
+                        continue;
+                    }
+                    hasPhi[y] = r;
+                    if (!flow.blockLiveIn(y).get(r)) {
+                        continue;
+                    }
+                    this.phis.get(y).add(new Phi(r, this.graph.predCount(y)));
+                    if (queued[y] != r) {
+                        queued[y] = r;
+                        work[count++] = y;
+                    }
+                }
+            }
+        }
+    }
+
+    // Give every definition a new register, and rewrite every use to the
+    // register of the definition that reaches it.
+    //
+    // This walks the dominator tree, keeping the current name of each
+    // register, and a log of the names replaced, so they can be restored
+    // on leaving a subtree.
+    private void rename(int maxReg) {
+        int blocks = this.graph.size();
+        int[] current = new int[maxReg + 1];
+        for (int r = 0; r <= maxReg; r++) {
+            current[r] = r;
+        }
+        int[] log = new int[16];
+        int logSize = 0;
+        int[] mark = new int[blocks];
+
+        // The stack holds basic blocks to enter, and (as ~b) to leave.
+        int[] stack = new int[2 * blocks];
+        int depth = 0;
+        if (blocks > 0) {
+            stack[depth++] = 0;
+        }
+        while (depth > 0) {
+            int b = stack[--depth];
+            if (b < 0) {
+                // Leaving a subtree: restore the names from before it.
+                b = ~b;
+                while (logSize > mark[b]) {
+                    logSize -= 2;
+                    current[log[logSize]] = log[logSize + 1];
+                }
+                continue;
+            }
+            mark[b] = logSize;
+
+            // Each phi function defines a new name.
+            for (Phi phi : this.phis.get(b)) {
+                if (logSize + 2 > log.length) {
+                    log = Arrays.copyOf(log, log.length * 2);
+                }
+                log[logSize++] = phi.var;
+                log[logSize++] = current[phi.var];
+                phi.def = this.newReg();
+                current[phi.var] = phi.def;
+            }
+
+            // Rename the uses in each operation, then its definition.
+            for (int n = this.graph.start(b); n < this.graph.end(b); n++) {
+                TACOpType type = this.code.getType(n);
+                int r1 = this.code.getR1(n);
+                int r2 = this.code.getR2(n);
+                int r3 = this.code.getR3(n);
+                if (TACOp.usesR1(type) && isRenamed(r1)) {
+                    r1 = current[r1];
+                }
+                if (TACOp.usesR2(type) && isRenamed(r2)) {
+                    r2 = current[r2];
+                }
+                if (TACOp.usesR3(type) && isRenamed(r3)) {
+                    r3 = current[r3];
+                }
+                if (TACOp.definesR1(type) && isRenamed(r1)) {
+                    if (logSize + 2 > log.length) {
+                        log = Arrays.copyOf(log, log.length * 2);
+                    }
+                    log[logSize++] = r1;
+                    log[logSize++] = current[r1];
+                    current[r1] = this.newReg();
+                    r1 = current[r1];
+                }
+                this.code.set(n, type, r1, r2, r3, this.code.getLabelId(n), this.code.getN(n));
+            }
+
+            // Fill in this block's arguments to the successors' phi functions.
+            for (int i = 0; i < this.graph.succCount(b); i++) {
+                int s = this.graph.succ(b, i);
+                int j = this.predIndex(s, b);
+                for (Phi phi : this.phis.get(s)) {
+                    phi.args[j] = current[phi.var];
+                }
+            }
+
+            // Come back to leave this block after its subtree is done.
+            stack[depth++] = ~b;
+            for (int i = this.dom.childCount(b) - 1; i >= 0; i--) {
+                stack[depth++] = this.dom.child(b, i);
+            }
+        }
+    }
+
+    // Return the index of basic block p among the predecessors of basic block
+    // b, or -1 if it is not one.
+    public int predIndex(int b, int p) {
+        for (int i = 0; i < this.graph.predCount(b); i++) {
+            if (this.graph.pred(b, i) == p) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // ------------------------------------------------------------------------
+    // Accessors:
+
+    // Return the code in SSA form.
+    public PackedTACBlock getCode() {
+        return this.code;
+    }
+
+    // Return the flow graph of the code, as it was when SSA form was built.
+    public TACFlowGraph getGraph() {
+        return this.graph;
+    }
+
+    // Return the dominators of the flow graph.
+    public TACDominators getDominators() {
+        return this.dom;
+    }
+
+    // Return the phi functions at the start of basic block b.
+    public List<Phi> getPhis(int b) {
+        return this.phis.get(b);
+    }
+
+    // Dump the code to standard output, with phi functions, for debugging.
+    public void dump() {
+        for (int b = 0; b < this.graph.size(); b++) {
+            for (int n = this.graph.start(b); n < this.graph.end(b); n++) {
+                if (this.code.isDeleted(n)) {
+                    continue;
+                }
+                System.out.println(this.code.get(n).toString());
+                // Phi functions come after the label starting the block.
+                if (n == this.graph.start(b)) {
+                    for (Phi phi : this.phis.get(b)) {
+                        System.out.println(phi.toString());
+                    }
+                }
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Destruction:
+
+    // Translate the code back out of SSA form, returning a new block.
+    //
+    // Each phi function becomes a copy at the end of each predecessor. The
+    // phi functions of a block all happen at once, so their copies are put
+    // in an order that never overwrites a register before it is copied
+    // (see sequentialise()). Where a predecessor ends with a conditional
+    // jump, the copies for that edge only belong on that edge, so the edge
+    // is split: the copies for the jump go in a new block at the end of the
+    // code, and the copies for falling through go after the jump.
+    //
+    // The registers are then coalesced (see coalesce()).
+    public PackedTACBlock toCode() {
+        PackedTACBlock out = new PackedTACBlock(this.code.size());
+        // New blocks for the targets of conditional jumps, to go at the end:
+        // their labels, the copies in them and the labels they jump to.
+        List<String> splitLabels = new ArrayList<String>();
+        List<int[]> splitCopies = new ArrayList<int[]>();
+        List<String> splitTargets = new ArrayList<String>();
+
+        for (int b = 0; b < this.graph.size(); b++) {
+            // The last operation decides where control goes, as in
+            // TACFlowGraph, even if it has been changed since.
+            int last = -1;
+            for (int n = this.graph.start(b); n < this.graph.end(b); n++) {
+                if (!this.code.isDeleted(n)) {
+                    last = n;
+                }
+            }
+            TACOpType type = (last < 0) ? TACOpType.NOP : this.code.getType(last);
+            boolean jumps = TACOp.jumps(type);
+
+            for (int n = this.graph.start(b); n < this.graph.end(b); n++) {
+                if (!this.code.isDeleted(n) && !(jumps && n == last)) {
+                    this.copyOp(out, n);
+                }
+            }
+
+            int next = (b + 1 < this.graph.size()) ? b + 1 : -1;
+            switch (type) {
+                case JMP:
+                    this.addCopies(out, this.edgeCopies(b, this.jumpTarget(last)));
+                    this.copyOp(out, last);
+                    break;
+                case JZ:
+                case JNZ: {
+                    int[] copies = this.edgeCopies(b, this.jumpTarget(last));
+                    if (copies.length == 0) {
+                        this.copyOp(out, last);
+                    }
+                    else {
+                        String split = this.newLabel(out, splitLabels.size());
+                        splitLabels.add(split);
+                        splitCopies.add(copies);
+                        splitTargets.add(this.code.getLabel(last));
+                        out.add(type, this.code.getR1(last), TACReg.NONE, TACReg.NONE,
+                                out.labelId(split), 0);
+                    }
+                    if (next >= 0) {
+                        this.addCopies(out, this.edgeCopies(b, next));
+                    }
+                    break;
+                }
+                case RET:
+                    break;
+                default:
+                    if (next >= 0) {
+                        this.addCopies(out, this.edgeCopies(b, next));
+                    }
+                    break;
+            }
+        }
+
+        if (!splitLabels.isEmpty()) {
+            // Don't let the end of the code fall through into the new blocks.
+            TACOpType end = out.isEmpty() ? TACOpType.NOP : out.getType(out.size() - 1);
+            if (end != TACOpType.RET && end != TACOpType.JMP) {
+                out.add(TACOpType.RET, TACReg.NONE, TACReg.NONE, TACReg.NONE, PackedTACBlock.NO_LABEL, 0);
+            }
+            for (int i = 0; i < splitLabels.size(); i++) {
+                out.add(TACOpType.LABEL, TACReg.NONE, TACReg.NONE, TACReg.NONE,
+                        out.labelId(splitLabels.get(i)), 0);
+                this.addCopies(out, splitCopies.get(i));
+                out.add(TACOpType.JMP, TACReg.NONE, TACReg.NONE, TACReg.NONE,
+                        out.labelId(splitTargets.get(i)), 0);
+            }
+        }
+
+        out.setResult(this.code.getResult());
+        this.coalesce(out);
+        return out;
+    }
+
+    // Append a copy of operation n to a block.
+    private void copyOp(PackedTACBlock out, int n) {
+        out.add(this.code.getType(n), this.code.getR1(n), this.code.getR2(n), this.code.getR3(n),
+                out.labelId(this.code.getLabel(n)), this.code.getN(n));
+    }
+
+    // Return the basic block that the jump at location n goes to.
+    private int jumpTarget(int n) {
+        return this.graph.blockOf(this.graph.labelLoc(this.code.getLabelId(n)));
+    }
+
+    // Make a label for the i-th new block, that is not already used.
+    private String newLabel(PackedTACBlock out, int i) {
+        String base = this.code.getLabel(0);
+        if (base == null) {
+            base = "SSA";
+        }
+        String label = base + "@s" + i;
+        while (this.code.hasLabel(label) || out.hasLabel(label)) {
+            i += 1000;
+            label = base + "@s" + i;
+        }
+        return label;
+    }
+
+    // Return the copies needed on the edge from basic block b to basic block
+    // s, in an order that can be executed one at a time, as pairs of
+    // (destination, source) registers.
+    private int[] edgeCopies(int b, int s) {
+        List<Phi> list = this.phis.get(s);
+        int j = this.predIndex(s, b);
+        if (list.isEmpty() || j < 0) {
+            return new int[0];
+        }
+        int[] copies = new int[2 * list.size()];
+        for (int i = 0; i < list.size(); i++) {
+            copies[2*i] = list.get(i).def;
+            copies[2*i + 1] = list.get(i).args[j];
+        }
+        return this.sequentialise(copies);
+    }
+
+    // Put a set of copies that should all happen at once into an order where
+    // they can happen one after another.
+    //
+    // A copy can go next if no other remaining copy still needs to read its
+    // destination. If there is no such copy, the remaining copies form
+    // cycles (such as swapping two registers), so one destination is saved
+    // in a new register first, and the copies reading it read that instead.
+    private int[] sequentialise(int[] copies) {
+        int count = copies.length / 2;
+        int[] dst = new int[count];
+        int[] src = new int[count];
+        int pending = 0;
+        for (int i = 0; i < count; i++) {
+            // Copies of a register to itself do nothing.
+            if (copies[2*i] != copies[2*i + 1]) {
+                dst[pending] = copies[2*i];
+                src[pending] = copies[2*i + 1];
+                pending++;
+            }
+        }
+
+        int[] result = new int[0];
+        int size = 0;
+        while (pending > 0) {
+            int ready = -1;
+            for (int i = 0; i < pending && ready < 0; i++) {
+                ready = i;
+                for (int k = 0; k < pending; k++) {
+                    if (k != i && src[k] == dst[i]) {
+                        ready = -1;
+                        break;
+                    }
+                }
+            }
+            if (result.length < size + 4) {
+                result = Arrays.copyOf(result, 2 * (size + 4));
+            }
+            if (ready >= 0) {
+                result[size++] = dst[ready];
+                result[size++] = src[ready];
+                pending--;
+                dst[ready] = dst[pending];
+                src[ready] = src[pending];
+            }
+            else {
+                int saved = dst[0];
+                int temp = this.newReg();
+                result[size++] = temp;
+                result[size++] = saved;
+                for (int k = 0; k < pending; k++) {
+                    if (src[k] == saved) {
+                        src[k] = temp;
+                    }
+                }
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    // Append a list of copies to a block.
+    private void addCopies(PackedTACBlock out, int[] copies) {
+        for (int i = 0; i < copies.length; i += 2) {
+            out.add(TACOpType.MOV, copies[i], copies[i+1], TACReg.NONE, PackedTACBlock.NO_LABEL, 0);
+        }
+    }
+
+    // Merge registers joined by copies, if their values never need to be held
+    // at the same time, then remove the copies that now copy a register to
+    // itself. The registers left are then renumbered.
+    //
+    // Two registers "interfere" if one is defined while the other is live
+    // afterwards (unless the definition is a copy of the other, as they then
+    // hold the same value). Each copy between registers that do not
+    // interfere is coalesced, in the order they appear, with the merged
+    // register interfering with everything either register did (Chaitin's
+    // method).
+    //
+    // Local variables that hold incoming values (such as parameters) must
+    // keep their names, so no two of them are merged, and a merged register
+    // that contains one is named after it. Every other merged register gets
+    // a new r register, numbered from 1.
+    private void coalesce(PackedTACBlock out) {
+        // Give each renamed register a dense id.
+        int maxReg = 0;
+        for (int n = 0; n < out.size(); n++) {
+            maxReg = Math.max(maxReg, Math.max(out.getR1(n), Math.max(out.getR2(n), out.getR3(n))));
+        }
+        int[] id = new int[maxReg + 1];
+        Arrays.fill(id, -1);
+        int ids = 0;
+        for (int n = 0; n < out.size(); n++) {
+            for (int r : new int[] { out.getR1(n), out.getR2(n), out.getR3(n) }) {
+                if (isRenamed(r) && id[r] < 0) {
+                    id[r] = ids++;
+                }
+            }
+        }
+        int[] reg = new int[ids];
+        for (int r = 0; r <= maxReg; r++) {
+            if (id[r] >= 0) {
+                reg[id[r]] = r;
+            }
+        }
+
+        // Build the interference graph, by scanning each basic block
+        // backwards from its live-out set.
+        BitSet[] adj = new BitSet[ids];
+        for (int i = 0; i < ids; i++) {
+            adj[i] = new BitSet();
+        }
+        TACFlowAnalysis flow = new TACFlowAnalysis(out);
+        TACFlowGraph g = flow.getGraph();
+        BitSet live = new BitSet();
+        for (int b = 0; b < g.size(); b++) {
+            live.clear();
+            live.or(flow.blockLiveOut(b));
+            for (int n = g.end(b) - 1; n >= g.start(b); n--) {
+                int d = out.def(n);
+                if (d != TACReg.NONE) {
+                    live.clear(d);
+                    if (isRenamed(d)) {
+                        int except = (out.getType(n) == TACOpType.MOV) ? out.getR2(n) : TACReg.NONE;
+                        for (int l = live.nextSetBit(0); l >= 0; l = live.nextSetBit(l + 1)) {
+                            if (l != except && l <= maxReg && id[l] >= 0) {
+                                adj[id[d]].set(id[l]);
+                                adj[id[l]].set(id[d]);
+                            }
+                        }
+                    }
+                }
+                int u1 = out.firstUse(n);
+                if (u1 != TACReg.NONE) {
+                    live.set(u1);
+                }
+                int u2 = out.secondUse(n);
+                if (u2 != TACReg.NONE) {
+                    live.set(u2);
+                }
+            }
+        }
+
+        // Merge the registers joined by copies, with a union-find structure.
+        // Each set of merged registers has its members, everything they
+        // interfere with, and the local variable it must be named after.
+        int[] parent = new int[ids];
+        BitSet[] members = new BitSet[ids];
+        int[] fixed = new int[ids];
+        for (int i = 0; i < ids; i++) {
+            parent[i] = i;
+            members[i] = new BitSet();
+            members[i].set(i);
+            fixed[i] = TACReg.isVL(reg[i]) ? reg[i] : TACReg.NONE;
+        }
+        for (int n = 0; n < out.size(); n++) {
+            if (out.getType(n) != TACOpType.MOV || !isRenamed(out.getR1(n)) || !isRenamed(out.getR2(n))) {
+                continue;
+            }
+            int a = find(parent, id[out.getR1(n)]);
+            int b = find(parent, id[out.getR2(n)]);
+            if (a == b || adj[a].intersects(members[b])) {
+                continue;
+            }
+            if (fixed[a] != TACReg.NONE && fixed[b] != TACReg.NONE) {
+                continue;
+            }
+            parent[b] = a;
+            members[a].or(members[b]);
+            adj[a].or(adj[b]);
+            if (fixed[a] == TACReg.NONE) {
+                fixed[a] = fixed[b];
+            }
+            members[b] = null;
+            adj[b] = null;
+        }
+
+        // Name each set of merged registers.
+        int[] name = new int[ids];
+        Arrays.fill(name, TACReg.NONE);
+        int nextR = 1;
+        for (int n = 0; n < out.size(); n++) {
+            for (int r : new int[] { out.getR1(n), out.getR2(n), out.getR3(n) }) {
+                if (!isRenamed(r)) {
+                    continue;
+                }
+                int root = find(parent, id[r]);
+                if (name[root] == TACReg.NONE) {
+                    name[root] = (fixed[root] != TACReg.NONE) ? fixed[root] : TACReg.r(nextR++);
+                }
+            }
+        }
+
+        // Rewrite the registers, and delete copies that now do nothing.
+        for (int n = 0; n < out.size(); n++) {
+            int r1 = out.getR1(n);
+            int r2 = out.getR2(n);
+            int r3 = out.getR3(n);
+            r1 = isRenamed(r1) ? name[find(parent, id[r1])] : r1;
+            r2 = isRenamed(r2) ? name[find(parent, id[r2])] : r2;
+            r3 = isRenamed(r3) ? name[find(parent, id[r3])] : r3;
+            TACOpType type = out.getType(n);
+            if (type == TACOpType.MOV && r1 == r2) {
+                out.delete(n);
+            }
+            else {
+                out.set(n, type, r1, r2, r3, out.getLabelId(n), out.getN(n));
+            }
+        }
+        out.compact();
+    }
+
+    // Find the set containing i, halving paths along the way.
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+}
@@ -0,0 +1,32 @@
+package babycino;
+
+// Optimiser that translates a block into SSA form and straight back out.
+//
+// Translating out of SSA form coalesces registers joined by copies, which
+// removes many of the copies made by the code generator (see TACSSA).
+public class TACSSAOptimiser implements TACBlockOptimiser {
+    public TACSSAOptimiser() {
+    
+    }
+
+    // Translate a TACBlock into and out of SSA form.
+    public TACBlock optimise(TACBlock code) {
+        PackedTACBlock result = this.optimise(PackedTACBlock.pack(code));
+        if (result == null) {
+            return null;
+        }
+        return result.unpack();
+    }
+
+    // Translate a PackedTACBlock into and out of SSA form.
+    // Only count it as an optimisation if the code gets shorter, so that
+    // repeating the pass always stops.
+    public PackedTACBlock optimise(PackedTACBlock code) {
+        PackedTACBlock result = new TACSSA(code).toCode();
+        if (result.count() >= code.count()) {
+            return null;
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,254 @@
+package babycino;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Escape analysis and scalar replacement.
+//
+// An object allocated by "p = malloc k", where k is a constant, does not
+// escape the method if p is only ever used to load or store its words:
+// either word 0 through p itself, or word c through "a = p offset c", for a
+// constant c less than k. Then nothing else can see the object, so each of
+// its words can be kept in a register of its own instead, and the
+// allocation removed. The registers are set to 0 where the allocation was,
+// as malloc clears the memory it allocates.
+//
+// If p is passed to a method, stored, copied, compared or used in any
+// other way, the object escapes and is left alone. Calls to small methods
+// on the object are often inlined (see TACInliner), after which the object
+// may no longer escape.
+//
+// So that there is only ever one object for the registers to stand for, p
+// must have no other definition, and must not be live on entry to the
+// method. An allocation in a loop makes a new object each time round, and
+// p always holds the latest. So unless the allocation can only run once,
+// each address "a = p offset c" must only be used in the same basic block,
+// before p is allocated again.
+//
+// Objects that do escape the method are still allocated on the heap, as TAC
+// has no way to allocate them in the method's frame.
+public class TACScalarReplacementOptimiser implements TACBlockOptimiser {
+
+    // The largest object replaced, in words.
+    public static final int LIMIT = 32;
+
+    public TACScalarReplacementOptimiser() {
+
+    }
+
+    // Replace non-escaping objects in a TACBlock.
+    public TACBlock optimise(TACBlock code) {
+        PackedTACBlock result = this.optimise(PackedTACBlock.pack(code));
+        if (result == null) {
+            return null;
+        }
+        return result.unpack();
+    }
+
+    // Replace non-escaping objects in a PackedTACBlock.
+    // Return a new block, or null if there were none.
+    public PackedTACBlock optimise(PackedTACBlock code) {
+        int maxReg = 0;
+        int maxR = 0;
+        for (int n = code.next(-1); n < code.size(); n = code.next(n)) {
+            for (int r : new int[] { code.getR1(n), code.getR2(n), code.getR3(n) }) {
+                maxReg = Math.max(maxReg, r);
+                if (TACReg.isR(r)) {
+                    maxR = Math.max(maxR, TACReg.index(r));
+                }
+            }
+        }
+        int[] defCount = new int[maxReg + 1];
+        int[] defLoc = new int[maxReg + 1];
+        // The uses of each register.
+        Map<Integer, List<Integer>> uses = new HashMap<Integer, List<Integer>>();
+        for (int n = code.next(-1); n < code.size(); n = code.next(n)) {
+            int d = code.def(n);
+            if (d != TACReg.NONE) {
+                defCount[d]++;
+                defLoc[d] = n;
+            }
+            for (int r : new int[] { code.firstUse(n), code.secondUse(n) }) {
+                if (r != TACReg.NONE) {
+                    if (!uses.containsKey(r)) {
+                        uses.put(r, new ArrayList<Integer>());
+                    }
+                    uses.get(r).add(n);
+                }
+            }
+        }
+
+        TACFlowAnalysis flow = TACFlowAnalysis.forCode(code);
+        Analysis analysis = new Analysis(code, flow, defCount, defLoc, uses);
+        // For each allocation replaced, the first of its registers; and for
+        // each load, store or address of its words, the word.
+        Map<Integer, Integer> objects = new HashMap<Integer, Integer>();
+        Map<Integer, Integer> words = new HashMap<Integer, Integer>();
+        for (int n = code.next(-1); n < code.size(); n = code.next(n)) {
+            if (code.getType(n) != TACOpType.MALLOC) {
+                continue;
+            }
+            Map<Integer, Integer> found = analysis.words(n);
+            if (found != null) {
+                objects.put(n, maxR + 1);
+                maxR += code.getN(defLoc[code.getR2(n)]);
+                words.putAll(found);
+            }
+        }
+        if (objects.isEmpty()) {
+            return null;
+        }
+
+        // Build the new code, with registers in place of the objects.
+        PackedTACBlock out = new PackedTACBlock(code.count());
+        for (int n = code.next(-1); n < code.size(); n = code.next(n)) {
+            TACOpType type = code.getType(n);
+            if (objects.containsKey(n)) {
+                int first = objects.get(n);
+                int size = code.getN(defLoc[code.getR2(n)]);
+                for (int c = 0; c < size; c++) {
+                    out.add(TACOpType.IMMED, TACReg.r(first + c), TACReg.NONE, TACReg.NONE, PackedTACBlock.NO_LABEL, 0);
+                }
+            }
+            else if (!words.containsKey(n)) {
+                out.add(type, code.getR1(n), code.getR2(n), code.getR3(n),
+                        out.labelId(code.getLabel(n)), code.getN(n));
+            }
+            else if (type == TACOpType.LOAD) {
+                int object = objects.get(defLoc[analysis.object(code.getR2(n))]);
+                int word = TACReg.r(object + words.get(n));
+                out.add(TACOpType.MOV, code.getR1(n), word, TACReg.NONE, PackedTACBlock.NO_LABEL, 0);
+            }
+            else if (type == TACOpType.STORE) {
+                int object = objects.get(defLoc[analysis.object(code.getR1(n))]);
+                int word = TACReg.r(object + words.get(n));
+                out.add(TACOpType.MOV, word, code.getR2(n), TACReg.NONE, PackedTACBlock.NO_LABEL, 0);
+            }
+            // Otherwise it is the address of a word, which is no longer needed.
+        }
+        out.setResult(code.getResult());
+        return out;
+    }
+
+    // The uses of the registers in a block of code, and where they point.
+    private static class Analysis {
+        private PackedTACBlock code;
+        private TACFlowAnalysis flow;
+        private TACFlowGraph graph;
+        private int[] defCount;
+        private int[] defLoc;
+        private Map<Integer, List<Integer>> uses;
+
+        Analysis(PackedTACBlock code, TACFlowAnalysis flow, int[] defCount, int[] defLoc,
+                 Map<Integer, List<Integer>> uses) {
+            this.code = code;
+            this.flow = flow;
+            this.graph = flow.getGraph();
+            this.defCount = defCount;
+            this.defLoc = defLoc;
+            this.uses = uses;
+        }
+
+        // If the object allocated at location n does not escape, return the
+        // word each load, store and address of it refers to, by location.
+        // Otherwise return null.
+        Map<Integer, Integer> words(int n) {
+            int p = this.code.getR1(n);
+            int size = this.constant(this.code.getR2(n));
+            if (size < 0 || size > LIMIT || !this.singleDef(p)) {
+                return null;
+            }
+            boolean once = !this.inCycle(this.graph.blockOf(n));
+
+            Map<Integer, Integer> words = new HashMap<Integer, Integer>();
+            for (int m : this.uses.getOrDefault(p, new ArrayList<Integer>())) {
+                TACOpType type = this.code.getType(m);
+                if (type == TACOpType.LOAD || (type == TACOpType.STORE && this.code.getR1(m) == p
+                                               && this.code.getR2(m) != p)) {
+                    words.put(m, 0);
+                    continue;
+                }
+                // Otherwise it must be the address of a word.
+                int a = this.code.getR1(m);
+                int c = (this.code.getR3(m) == p) ? -1 : this.constant(this.code.getR3(m));
+                if (type != TACOpType.BINOP || this.code.getN(m) != TACOp.binopToCode("offset")
+                    || c < 0 || c >= size || a == p || !this.singleDef(a)) {
+                    return null;
+                }
+                words.put(m, c);
+                for (int u : this.uses.getOrDefault(a, new ArrayList<Integer>())) {
+                    TACOpType useType = this.code.getType(u);
+                    if (useType != TACOpType.LOAD
+                        && !(useType == TACOpType.STORE && this.code.getR1(u) == a && this.code.getR2(u) != a)) {
+                        return null;
+                    }
+                    if (!once && !this.sameObject(n, m, u)) {
+                        return null;
+                    }
+                    words.put(u, c);
+                }
+            }
+            return words;
+        }
+
+        // Return the register holding the object that register r is the
+        // address of a word of (which may be r itself).
+        int object(int r) {
+            int d = this.defLoc[r];
+            if (this.code.getType(d) == TACOpType.BINOP) {
+                return this.code.getR2(d);
+            }
+            return r;
+        }
+
+        // If register r has one definition, which is a constant, return it.
+        // Otherwise return -1.
+        private int constant(int r) {
+            if (r >= this.defCount.length || this.defCount[r] != 1
+                || this.code.getType(this.defLoc[r]) != TACOpType.IMMED) {
+                return -1;
+            }
+            return this.code.getN(this.defLoc[r]);
+        }
+
+        // Does register r have one definition, and no value on entry?
+        private boolean singleDef(int r) {
+            return r != TACReg.R0 && !TACReg.isVG(r) && this.defCount[r] == 1 && !this.flow.blockLiveIn(0).get(r);
+        }
+
+        // Does the address defined at location m refer to the latest object
+        // allocated at location n when it is used at location u? It does if
+        // u is later in the same basic block, without n in between.
+        private boolean sameObject(int n, int m, int u) {
+            if (u < m || this.graph.blockOf(u) != this.graph.blockOf(m)) {
+                return false;
+            }
+            return n < m || n > u;
+        }
+
+        // Can basic block b be reached from itself?
+        private boolean inCycle(int b) {
+            BitSet seen = new BitSet(this.graph.size());
+            List<Integer> work = new ArrayList<Integer>();
+            work.add(b);
+            while (!work.isEmpty()) {
+                int x = work.remove(work.size() - 1);
+                for (int i = 0; i < this.graph.succCount(x); i++) {
+                    int s = this.graph.succ(x, i);
+                    if (s == b) {
+                        return true;
+                    }
+                    if (!seen.get(s)) {
+                        seen.set(s);
+                        work.add(s);
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+}
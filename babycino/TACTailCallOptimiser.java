@@ -0,0 +1,146 @@
+package babycino;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Self-recursive tail call elimination.
+//
+// A call is a tail call if all that happens after it is returning its
+// result: the code from the call to a return only copies r0 about and jumps,
+// and r0 still holds the result when it returns. If a tail call is direct
+// (see ClassHierarchy) and calls the method it is in, there is no need for
+// a new call at all: the parameters (including "this") are moved into the
+// vl registers they arrive in, and the method is started again by jumping
+// to a label just after its entry. So the recursion runs in constant stack
+// space.
+//
+// The parameters are copied through new r registers first, as the values
+// passed may depend on the vl registers being overwritten. The copies are
+// left for the other optimisers to remove.
+public class TACTailCallOptimiser implements TACBlockOptimiser {
+
+    private SymbolTable sym;
+
+    public TACTailCallOptimiser(SymbolTable sym) {
+        this.sym = sym;
+    }
+
+    // Replace self-recursive tail calls in a block of code by jumps.
+    // Return a new block, or null if there are none.
+    public TACBlock optimise(TACBlock code) {
+        if (code.isEmpty() || code.get(0).getType() != TACOpType.LABEL) {
+            return null;
+        }
+        String method = code.get(0).getLabel();
+        String restart = method + "@t";
+
+        Map<String, Integer> labels = new HashMap<String, Integer>();
+        for (int n = 0; n < code.size(); n++) {
+            if (code.get(n).getType() == TACOpType.LABEL) {
+                labels.put(code.get(n).getLabel(), n);
+            }
+        }
+
+        // Find the tail calls, and where their parameters start.
+        int[] paramStart = new int[code.size()];
+        int[] defLoc = TACInliner.singleDefs(code);
+        boolean found = false;
+        for (int n = 0; n < code.size(); n++) {
+            paramStart[n] = -1;
+            if (code.get(n).getType() != TACOpType.CALL || !method.equals(TACInliner.findTarget(code, defLoc, n))
+                || !this.returnsResult(code, labels, n)) {
+                continue;
+            }
+            // The parameters must be pushed just before the call: "this",
+            // then one for each parameter of the method.
+            Method m = TACInliner.findMethod(this.sym, method);
+            int start = n;
+            while (start > 0 && code.get(start - 1).getType() == TACOpType.PARAM) {
+                start--;
+            }
+            if (m == null || n - start != m.getParams().size() + 1) {
+                continue;
+            }
+            paramStart[n] = start;
+            found = true;
+        }
+        if (!found) {
+            return null;
+        }
+
+        // Build the new code, with the restart label added after the entry
+        // (unless an earlier run added it already).
+        TACBlock result = new TACBlock();
+        result.add(code.get(0));
+        if (!labels.containsKey(restart)) {
+            result.add(TACOp.label(restart));
+        }
+        int maxR = Math.max(0, code.getMaxR());
+        for (int n = 1; n < code.size(); n++) {
+            TACOp op = code.get(n);
+            if (op.getType() == TACOpType.PARAM && this.isTailParam(code, paramStart, n)) {
+                // Moved into place when the call is reached.
+                continue;
+            }
+            if (op.getType() != TACOpType.CALL || paramStart[n] < 0) {
+                result.add(op);
+                continue;
+            }
+            int params = n - paramStart[n];
+            for (int p = 0; p < params; p++) {
+                result.add(TACOp.mov(TACReg.r(maxR + 1 + p), code.get(paramStart[n] + p).getR1()));
+            }
+            for (int p = 0; p < params; p++) {
+                result.add(TACOp.mov(TACReg.vl(p), TACReg.r(maxR + 1 + p)));
+            }
+            maxR += params;
+            result.add(TACOp.jmp(restart));
+        }
+        return result;
+    }
+
+    // Is location n one of the parameters of a tail call?
+    private boolean isTailParam(TACBlock code, int[] paramStart, int n) {
+        int call = n;
+        while (code.get(call).getType() == TACOpType.PARAM) {
+            call++;
+        }
+        return code.get(call).getType() == TACOpType.CALL && paramStart[call] >= 0;
+    }
+
+    // Does the code after the call at location n return the call's result
+    // without doing anything else? Follow the code through jumps, keeping
+    // track of which registers hold the result, until a return.
+    private boolean returnsResult(TACBlock code, Map<String, Integer> labels, int n) {
+        Map<Integer, Boolean> holds = new HashMap<Integer, Boolean>();
+        holds.put(TACReg.R0, true);
+        // Jumps could go round in a cycle, so give up after as many
+        // operations as there are in the code.
+        int m = n + 1;
+        for (int steps = 0; steps < code.size() && m < code.size(); steps++) {
+            TACOp op = code.get(m);
+            switch (op.getType()) {
+                case LABEL:
+                    m++;
+                    break;
+                case JMP:
+                    m = labels.get(op.getLabel());
+                    break;
+                case MOV:
+                    // Global registers outlive the call, so must not change.
+                    if (TACReg.isVG(op.getR1())) {
+                        return false;
+                    }
+                    holds.put(op.getR1(), holds.getOrDefault(op.getR2(), false));
+                    m++;
+                    break;
+                case RET:
+                    return holds.get(TACReg.R0);
+                default:
+                    return false;
+            }
+        }
+        return false;
+    }
+
+}
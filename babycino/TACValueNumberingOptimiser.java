@@ -0,0 +1,274 @@
+package babycino;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+// Local value numbering.
+//
+// Within each basic block, every value computed is given a number, so that
+// two registers have the same number only if they are known to hold the same
+// value. Constants, label addresses and binary operations (including offset)
+// are looked up by what they compute: an operation on the same values as an
+// earlier one gets the same number, and if a register still holds that value,
+// the operation is replaced with a move from it. TACCopyPropagationOptimiser
+// and TACDeadCodeOptimiser then tidy up the moves.
+//
+// Loads are numbered by the address loaded from, and a store records the
+// value stored so that a later load from the same address can reuse it.
+// Memory is not analysed further, so every store or call forgets all
+// previous loads.
+//
+// This catches the field address arithmetic TACGenerator repeats for every
+// access to an instance variable or array element.
+public class TACValueNumberingOptimiser implements TACBlockOptimiser {
+
+    // The codes of the commutative binary operations.
+    private static final int PLUS = TACOp.binopToCode("+");
+    private static final int TIMES = TACOp.binopToCode("*");
+
+    // Kinds of expression, for the keys of the expression table.
+    private static final long KEY_IMMED = 0;
+    private static final long KEY_ADDROF = 1;
+    private static final long KEY_BINOP = 2;
+
+    public TACValueNumberingOptimiser() {
+
+    }
+
+    // Number the values in a TACBlock.
+    public TACBlock optimise(TACBlock code) {
+        PackedTACBlock result = this.optimise(PackedTACBlock.pack(code));
+        if (result == null) {
+            return null;
+        }
+        return result.unpack();
+    }
+
+    // Number the values in a PackedTACBlock, in place.
+    // Return the block, or null if no operation was replaced.
+    public PackedTACBlock optimise(PackedTACBlock code) {
+        // The numbering is kept in a separate object for each call, so the
+        // optimiser itself can be shared between threads.
+        return new Numbering(code).run() ? code : null;
+    }
+
+    // The value numbering of one block of code.
+    private static class Numbering {
+        private PackedTACBlock code;
+
+        // The value number in each register, valid only if the register's
+        // generation matches the current basic block's.
+        private int[] regValue;
+        private int[] regGen;
+        private int gen;
+        // The global registers seen, which a call may change.
+        private int[] globals;
+        private int globalCount;
+
+        // The next value number to give out.
+        private int nextValue;
+        // A register known to hold each value number, if it still does.
+        private int[] holder;
+        // The value number of each expression computed in this basic block.
+        private HashMap<Long, Integer> exprs;
+        // The value number loaded from each address (by value number) since
+        // the last store or call.
+        private HashMap<Integer, Integer> loads;
+
+        Numbering(PackedTACBlock code) {
+            this.code = code;
+            int maxReg = 0;
+            for (int n = code.next(-1); n < code.size(); n = code.next(n)) {
+                maxReg = Math.max(maxReg, Math.max(code.getR1(n), Math.max(code.getR2(n), code.getR3(n))));
+            }
+            this.regValue = new int[maxReg + 1];
+            this.regGen = new int[maxReg + 1];
+            this.globals = new int[8];
+            for (int r = 0; r <= maxReg; r++) {
+                if (TACReg.isVG(r)) {
+                    this.addGlobal(r);
+                }
+            }
+            this.holder = new int[64];
+            this.exprs = new HashMap<Long, Integer>();
+            this.loads = new HashMap<Integer, Integer>();
+        }
+
+        private void addGlobal(int r) {
+            if (this.globalCount == this.globals.length) {
+                this.globals = Arrays.copyOf(this.globals, 2 * this.globalCount);
+            }
+            this.globals[this.globalCount++] = r;
+        }
+
+        // Number every basic block. Return whether any operation changed.
+        boolean run() {
+            TACFlowGraph graph = TACFlowAnalysis.forCode(this.code).getGraph();
+            boolean changed = false;
+            for (int b = 0; b < graph.size(); b++) {
+                if (!graph.reachable(b)) {
+                    continue;
+                }
+                // Nothing is known on entry to a basic block.
+                this.gen++;
+                this.exprs.clear();
+                this.loads.clear();
+                for (int n = graph.start(b); n < graph.end(b); n++) {
+                    if (!this.code.isDeleted(n)) {
+                        changed = this.number(n) || changed;
+                    }
+                }
+            }
+            return changed;
+        }
+
+        // Number operation n, replacing it if its value is already in a
+        // register. Return whether it was replaced.
+        private boolean number(int n) {
+            TACOpType type = this.code.getType(n);
+            int r1 = this.code.getR1(n);
+            switch (type) {
+                case IMMED:
+                    this.define(r1, this.lookup(key(KEY_IMMED, this.code.getN(n))));
+                    return false;
+
+                case ADDROF:
+                    this.define(r1, this.lookup(key(KEY_ADDROF, this.code.getLabelId(n))));
+                    return false;
+
+                case MOV:
+                    this.define(r1, this.valueOf(this.code.getR2(n)));
+                    return false;
+
+                case BINOP: {
+                    int op = this.code.getN(n);
+                    int a = this.valueOf(this.code.getR2(n));
+                    int b = this.valueOf(this.code.getR3(n));
+                    if ((op == PLUS || op == TIMES) && b < a) {
+                        int t = a;
+                        a = b;
+                        b = t;
+                    }
+                    return this.reuse(n, r1, this.lookup(binopKey(op, a, b)));
+                }
+
+                case LOAD: {
+                    int addr = this.valueOf(this.code.getR2(n));
+                    Integer value = this.loads.get(addr);
+                    if (value == null) {
+                        value = this.fresh();
+                        this.loads.put(addr, value);
+                    }
+                    return this.reuse(n, r1, value);
+                }
+
+                case STORE:
+                    // Any earlier load may have been from the same address.
+                    this.loads.clear();
+                    this.loads.put(this.valueOf(r1), this.valueOf(this.code.getR2(n)));
+                    return false;
+
+                case CALL:
+                    // The code called may store to memory or change globals,
+                    // and may leave a result in r0.
+                    this.loads.clear();
+                    for (int i = 0; i < this.globalCount; i++) {
+                        this.define(this.globals[i], this.fresh());
+                    }
+                    this.define(TACReg.R0, this.fresh());
+                    return false;
+
+                default: {
+                    // Anything else that defines a register gives it a value
+                    // that is not known to be anything else.
+                    int d = this.code.def(n);
+                    if (d != TACReg.NONE) {
+                        this.define(d, this.fresh());
+                    }
+                    return false;
+                }
+            }
+        }
+
+        // Operation n computes value number v into register r1. If another
+        // register already holds v, replace the operation with a move from
+        // it (or delete it, if r1 already holds v). Otherwise, record r1 as
+        // holding v. Return whether the operation was replaced.
+        private boolean reuse(int n, int r1, int v) {
+            int h = this.holder[v];
+            if (this.holds(h, v)) {
+                if (h == r1) {
+                    this.code.delete(n);
+                }
+                else {
+                    this.code.set(n, TACOpType.MOV, r1, h, TACReg.NONE, PackedTACBlock.NO_LABEL, 0);
+                    this.define(r1, v);
+                }
+                return true;
+            }
+            this.define(r1, v);
+            return false;
+        }
+
+        // Return the value number in register r, giving it a new one if it
+        // has not been seen in this basic block.
+        private int valueOf(int r) {
+            if (this.regGen[r] != this.gen) {
+                this.define(r, this.fresh());
+            }
+            return this.regValue[r];
+        }
+
+        // Record that register r now holds value number v.
+        private void define(int r, int v) {
+            if (r >= this.regValue.length) {
+                this.regValue = Arrays.copyOf(this.regValue, r + 1);
+                this.regGen = Arrays.copyOf(this.regGen, r + 1);
+            }
+            this.regValue[r] = v;
+            this.regGen[r] = this.gen;
+            // Prefer the register the value was first computed in, while it
+            // still holds it.
+            if (!this.holds(this.holder[v], v)) {
+                this.holder[v] = r;
+            }
+        }
+
+        // Does register r still hold value number v?
+        private boolean holds(int r, int v) {
+            return r != TACReg.NONE && this.regGen[r] == this.gen && this.regValue[r] == v;
+        }
+
+        // Return the value number of an expression, giving it a new one if it
+        // has not been computed in this basic block.
+        private int lookup(long key) {
+            Integer v = this.exprs.get(key);
+            if (v == null) {
+                v = this.fresh();
+                this.exprs.put(key, v);
+            }
+            return v;
+        }
+
+        // Return a new value number.
+        private int fresh() {
+            int v = ++this.nextValue;
+            if (v == this.holder.length) {
+                this.holder = Arrays.copyOf(this.holder, 2 * v);
+            }
+            this.holder[v] = TACReg.NONE;
+            return v;
+        }
+
+        private static long key(long kind, int n) {
+            return (kind << 62) | (n & 0xffffffffL);
+        }
+
+        // Value numbers are below 2^28 (far more than any block could need),
+        // so a binary operation's key fits in a long with its operands.
+        private static long binopKey(int op, int a, int b) {
+            return (KEY_BINOP << 62) | ((long) op << 56) | ((long) a << 28) | b;
+        }
+    }
+
+}